@@ -27,6 +27,8 @@ import flash.net.URLLoaderDataFormat;
 import flash.net.URLRequest;
 import flash.net.URLRequestMethod;
 import flash.utils.ByteArray;
+import flash.utils.getTimer;
+import flash.utils.setTimeout;
 
 import com.threerings.io.ObjectInputStream;
 import com.threerings.io.ObjectOutputStream;
@@ -37,6 +39,7 @@ import com.threerings.util.Log;
 import com.threerings.util.Map;
 import com.threerings.util.Maps;
 
+import com.threerings.riposte.data.PostCodes;
 import com.threerings.riposte.data.PostMarshaller;
 import com.threerings.riposte.data.StreamableError;
 
@@ -205,13 +208,33 @@ public class PostClient
 
     protected function maybeSendNextRequest() :void
     {
-        if (_postIsPending || _queue.length == 0) {
+        if (_postIsPending || _backoffPending || _queue.length == 0) {
+            return;
+        }
+        var wait :int = _backoffUntil - getTimer();
+        if (wait > 0) {
+            _backoffPending = true;
+            setTimeout(function () :void {
+                _backoffPending = false;
+                maybeSendNextRequest();
+            }, wait);
             return;
         }
         _queue.shift()();
         _postIsPending = true;
     }
 
+    /**
+     * Called when the server refuses a call because it is overloaded. Further requests are held
+     * back for an exponentially growing, randomized interval until a call succeeds again.
+     */
+    protected function noteOverloaded () :void
+    {
+        _backoff = (_backoff == 0) ? INITIAL_BACKOFF : Math.min(_backoff * 2, MAX_BACKOFF);
+        _backoffUntil = getTimer() + _backoff / 2 + int(Math.random() * _backoff / 2);
+        log.info("Server is overloaded, backing off", "millis", _backoff);
+    }
+
     protected function loaderComplete (listeners :Array, event :Event) :void
     {
         var loader :URLLoader = event.target as URLLoader;
@@ -238,9 +261,14 @@ public class PostClient
         }
 
         if (result is StreamableError) {
-            listenersFailed(listeners, (result as StreamableError).getCause());
+            var cause :String = (result as StreamableError).getCause();
+            if (cause == PostCodes.OVERLOADED || cause == PostCodes.RATE_LIMITED) {
+                noteOverloaded();
+            }
+            listenersFailed(listeners, cause);
 
         } else {
+            _backoff = 0;
             if (result is Boxed) {
                 result = Boxed(result).unbox();
             }
@@ -278,6 +306,15 @@ public class PostClient
     protected var _postIsPending :Boolean;
     protected var _defaultListener :PostListener;
     protected var _shutdown :Boolean;
+    protected var _backoff :int;
+    protected var _backoffUntil :int;
+    protected var _backoffPending :Boolean;
+
+    /** The interval, in milliseconds, for which we first back off an overloaded server. */
+    protected static const INITIAL_BACKOFF :int = 100;
+
+    /** The longest interval, in milliseconds, for which we back off an overloaded server. */
+    protected static const MAX_BACKOFF :int = 10 * 1000;
 
     private static const log :Log = Log.getLog(PostClient);
 }
@@ -0,0 +1,74 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.riposte.data {
+
+/**
+ * A collection of translation strings sent when things go wrong at a low level. These mirror the
+ * codes defined on the server in PostCodes.java.
+ */
+public class PostCodes
+{
+    /** This code is dispatched when something broke during streaming. */
+    public static const STREAMING_ERROR :String = "e.streaming_error";
+
+    /** This code is dispatched when there is a version mismatch between client and server. */
+    public static const VERSION_MISMATCH :String = "e.version_mismatch";
+
+    /** This code is dispatched when a method was not found. */
+    public static const METHOD_NOT_FOUND :String = "e.method_not_found";
+
+    /** This code is dispatched when the auth check method returns false for a given call. */
+    public static const AUTH_CHECK_FAILED :String = "e.auth_check_failed";
+
+    /** This code is dispatched when a request body is larger than the server will accept. */
+    public static const REQUEST_TOO_LARGE :String = "e.request_too_large";
+
+    /**
+     * This code is dispatched when the server is too busy to accept a call. Clients should back
+     * off before sending further calls.
+     */
+    public static const OVERLOADED :String = "e.overloaded";
+
+    /**
+     * This code is dispatched when a call could not be started before the timeout sent by the
+     * client had passed.
+     */
+    public static const DEADLINE_EXCEEDED :String = "e.deadline_exceeded";
+
+    /**
+     * This code is dispatched when the caller has exceeded the rate of calls allowed for its auth
+     * code. The client should back off before retrying.
+     */
+    public static const RATE_LIMITED :String = "e.rate_limited";
+
+    /**
+     * This code is dispatched when a request was streamed with a class dictionary that the server
+     * doesn't share. The client should resend it without one.
+     */
+    public static const DICTIONARY_MISMATCH :String = "e.dictionary_mismatch";
+
+    /**
+     * This code is dispatched by the client when a call is refused, or dropped, because its queue
+     * of calls waiting to be sent is full.
+     */
+    public static const QUEUE_FULL :String = "e.queue_full";
+}
+}
@@ -0,0 +1,231 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.riposte.client;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import static com.threerings.riposte.Log.log;
+
+/**
+ * Posts requests with the JDK's own HTTP client, which speaks HTTP/2 to servers that do. Posts to
+ * a server then share one multiplexed connection rather than each holding one of their own, and
+ * are answered on the client's threads without holding a thread while they wait, so a cancelled
+ * post only resets its stream.<br/><br/>
+ *
+ * The library is still built for Java 5, long before <code>java.net.http</code> arrived in Java
+ * 11, so the client is driven entirely by reflection. On a JVM without it, {@link #create}
+ * returns null and the caller keeps posting with {@link HttpTransport}.
+ */
+public class Http2Transport
+    implements PostTransport
+{
+    /**
+     * Creates a transport with its own HTTP client.
+     *
+     * @param connectTimeout The milliseconds to wait for a connection, or 0 for no limit.
+     * @param readTimeout The default milliseconds to wait for a response, or 0 for no limit.
+     *
+     * @return the transport, or null if this JVM has no HTTP client of its own.
+     */
+    public static Http2Transport create (int connectTimeout, int readTimeout)
+    {
+        try {
+            return new Http2Transport(connectTimeout, readTimeout);
+        } catch (Exception e) {
+            log.warning("Unable to post with the JDK's HTTP client on this JVM", "error", e);
+            return null;
+        }
+    }
+
+    // from interface PostTransport
+    public Post post (String address, byte[] body, int length, Map<String, String> headers,
+                      int timeout, Callback callback)
+    {
+        // the client may still be reading the body after a cancelled post has failed, by which
+        // time the caller has reused its buffer
+        byte[] copy = new byte[length];
+        System.arraycopy(body, 0, copy, 0, length);
+
+        final Future<?> future;
+        try {
+            Object builder = _newRequest.invoke(null, URI.create(address));
+            _post.invoke(builder, _ofByteArray.invoke(null, (Object)copy));
+            int limit = HttpTransport.limit(_readTimeout, timeout);
+            if (limit > 0) {
+                _timeout.invoke(builder, _ofMillis.invoke(null, (long)limit));
+            }
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                _header.invoke(builder, header.getKey(), header.getValue());
+            }
+            future = (Future<?>)_sendAsync.invoke(_client, _build.invoke(builder), _bodyHandler);
+            _whenComplete.invoke(future, newCompletion(address, callback));
+
+        } catch (Exception e) {
+            callback.postFailed(toIOException(e));
+            return new Post() {
+                public void cancel () {
+                    // nothing was sent
+                }
+            };
+        }
+        return new Post() {
+            public void cancel () {
+                future.cancel(true);
+            }
+        };
+    }
+
+    protected Http2Transport (int connectTimeout, int readTimeout)
+        throws Exception
+    {
+        Class<?> clientClass = Class.forName("java.net.http.HttpClient");
+        Class<?> clientBuilderClass = Class.forName("java.net.http.HttpClient$Builder");
+        Class<?> versionClass = Class.forName("java.net.http.HttpClient$Version");
+        Class<?> requestClass = Class.forName("java.net.http.HttpRequest");
+        Class<?> builderClass = Class.forName("java.net.http.HttpRequest$Builder");
+        Class<?> publisherClass = Class.forName("java.net.http.HttpRequest$BodyPublisher");
+        Class<?> publishersClass = Class.forName("java.net.http.HttpRequest$BodyPublishers");
+        Class<?> handlerClass = Class.forName("java.net.http.HttpResponse$BodyHandler");
+        Class<?> handlersClass = Class.forName("java.net.http.HttpResponse$BodyHandlers");
+        Class<?> responseClass = Class.forName("java.net.http.HttpResponse");
+        Class<?> headersClass = Class.forName("java.net.http.HttpHeaders");
+        Class<?> durationClass = Class.forName("java.time.Duration");
+        Class<?> futureClass = Class.forName("java.util.concurrent.CompletableFuture");
+        _biConsumerClass = Class.forName("java.util.function.BiConsumer");
+
+        _ofMillis = durationClass.getMethod("ofMillis", Long.TYPE);
+        Object builder = clientClass.getMethod("newBuilder").invoke(null);
+        clientBuilderClass.getMethod("version", versionClass).invoke(
+            builder, versionClass.getField("HTTP_2").get(null));
+        if (connectTimeout > 0) {
+            clientBuilderClass.getMethod("connectTimeout", durationClass).invoke(
+                builder, _ofMillis.invoke(null, (long)connectTimeout));
+        }
+        _client = clientBuilderClass.getMethod("build").invoke(builder);
+        _readTimeout = readTimeout;
+
+        _newRequest = requestClass.getMethod("newBuilder", URI.class);
+        _post = builderClass.getMethod("POST", publisherClass);
+        _timeout = builderClass.getMethod("timeout", durationClass);
+        _header = builderClass.getMethod("header", String.class, String.class);
+        _build = builderClass.getMethod("build");
+        _ofByteArray = publishersClass.getMethod("ofByteArray", byte[].class);
+        _bodyHandler = handlersClass.getMethod("ofByteArray").invoke(null);
+        _sendAsync = clientClass.getMethod("sendAsync", requestClass, handlerClass);
+        _whenComplete = futureClass.getMethod("whenComplete", _biConsumerClass);
+        _statusCode = responseClass.getMethod("statusCode");
+        _body = responseClass.getMethod("body");
+        _headers = responseClass.getMethod("headers");
+        _headerMap = headersClass.getMethod("map");
+    }
+
+    /**
+     * Creates the function the HTTP client calls back with a post's response, or the reason it
+     * failed.
+     */
+    protected Object newCompletion (final String address, final Callback callback)
+    {
+        return Proxy.newProxyInstance(Http2Transport.class.getClassLoader(),
+            new Class<?>[] { _biConsumerClass }, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                    if (!"accept".equals(method.getName())) {
+                        return method.invoke(this, args);
+                    }
+                    completed(address, args[0], (Throwable)args[1], callback);
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Called on one of the HTTP client's threads when a post finishes, with either its response
+     * or the reason it failed.
+     */
+    protected void completed (String address, Object response, Throwable cause, Callback callback)
+    {
+        Response rsp;
+        try {
+            if (cause != null) {
+                throw toIOException(cause);
+            }
+            int status = (Integer)_statusCode.invoke(response);
+            if (status >= 400) {
+                throw new IOException(
+                    "Server returned HTTP response code: " + status + " for URL: " + address);
+            }
+            rsp = new Response((byte[])_body.invoke(response));
+            @SuppressWarnings("unchecked") Map<String, List<String>> headers =
+                (Map<String, List<String>>)_headerMap.invoke(_headers.invoke(response));
+            for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+                if (!header.getValue().isEmpty()) {
+                    rsp.putHeader(header.getKey(), header.getValue().get(0));
+                }
+            }
+        } catch (IOException ioe) {
+            callback.postFailed(ioe);
+            return;
+        } catch (Exception e) {
+            callback.postFailed(toIOException(e));
+            return;
+        }
+        callback.responseReceived(rsp);
+    }
+
+    /**
+     * Unwraps the reason a post failed from the exceptions that carry it, reporting timeouts as
+     * {@link SocketTimeoutException}s as {@link java.net.HttpURLConnection} does.
+     */
+    protected static IOException toIOException (Throwable cause)
+    {
+        while ((cause instanceof InvocationTargetException ||
+                cause.getClass().getName().equals("java.util.concurrent.CompletionException")) &&
+               cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause.getClass().getName().startsWith("java.net.http.Http") &&
+                cause.getClass().getName().endsWith("TimeoutException")) {
+            return new SocketTimeoutException(cause.getMessage());
+        }
+        if (cause instanceof IOException) {
+            return (IOException)cause;
+        }
+        IOException ioe = new IOException(String.valueOf(cause));
+        ioe.initCause(cause);
+        return ioe;
+    }
+
+    protected Object _client;
+    protected Object _bodyHandler;
+    protected int _readTimeout;
+    protected Class<?> _biConsumerClass;
+    protected Method _ofMillis, _newRequest, _post, _timeout, _header, _build, _ofByteArray;
+    protected Method _sendAsync, _whenComplete, _statusCode, _body, _headers, _headerMap;
+}
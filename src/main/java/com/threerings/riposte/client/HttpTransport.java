@@ -0,0 +1,258 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.riposte.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Posts requests with {@link HttpURLConnection}. Bodies are sent with a fixed content length
+ * rather than buffered again by the connection, and every response, error or not, is read to the
+ * end so that the JVM can return its connection to the keep-alive pool for the next post to the
+ * same server, sparing it a new connection setup. Each post holds a thread until it is answered,
+ * the calling thread's unless an executor is given, and a cancelled post is abandoned by closing
+ * its connection.
+ */
+public class HttpTransport
+    implements PostTransport
+{
+    public HttpTransport ()
+    {
+        this(0, 0);
+    }
+
+    /**
+     * @param connectTimeout The default milliseconds to wait for a connection, or 0 for no limit.
+     * @param readTimeout The default milliseconds to wait for a response, or 0 for no limit.
+     */
+    public HttpTransport (int connectTimeout, int readTimeout)
+    {
+        this(connectTimeout, readTimeout, null);
+    }
+
+    /**
+     * @param connectTimeout The default milliseconds to wait for a connection, or 0 for no limit.
+     * @param readTimeout The default milliseconds to wait for a response, or 0 for no limit.
+     * @param executor Sends each post and waits for its answer, so that {@link #post} returns at
+     *                 once. Null posts on the calling thread.
+     */
+    public HttpTransport (int connectTimeout, int readTimeout, Executor executor)
+    {
+        _connectTimeout = connectTimeout;
+        _readTimeout = readTimeout;
+        _executor = executor;
+    }
+
+    // from interface PostTransport
+    public Post post (final String address, final byte[] body, final int length,
+                      final Map<String, String> headers, final int timeout,
+                      final Callback callback)
+    {
+        final HttpPost post = new HttpPost();
+        if (_executor == null) {
+            send(post, address, body, length, headers, timeout, callback);
+            return post;
+        }
+        try {
+            _executor.execute(new Runnable() {
+                public void run () {
+                    send(post, address, body, length, headers, timeout, callback);
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            callback.postFailed(new IOException("Transport's executor refused the post: " + ree));
+        }
+        return post;
+    }
+
+    /**
+     * Sends a post and tells its callback of the outcome.
+     */
+    protected void send (HttpPost post, String address, byte[] body, int length,
+                         Map<String, String> headers, int timeout, Callback callback)
+    {
+        Response rsp;
+        try {
+            rsp = exchange(post, address, body, length, headers, timeout);
+        } catch (IOException ioe) {
+            callback.postFailed(ioe);
+            return;
+        }
+        callback.responseReceived(rsp);
+    }
+
+    /**
+     * Sends a post and reads the whole of its response.
+     */
+    protected Response exchange (HttpPost post, String address, byte[] body, int length,
+                                 Map<String, String> headers, int timeout)
+        throws IOException
+    {
+        HttpURLConnection conn = (HttpURLConnection)new URL(address).openConnection();
+        post.connected(conn);
+        try {
+            conn.setDoInput(true);
+            conn.setDoOutput(true);
+            conn.setUseCaches(false);
+            conn.setConnectTimeout(limit(_connectTimeout, timeout));
+            conn.setReadTimeout(limit(_readTimeout, timeout));
+            conn.setFixedLengthStreamingMode(length);
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                conn.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            OutputStream out = conn.getOutputStream();
+            try {
+                out.write(body, 0, length);
+            } finally {
+                out.close();
+            }
+
+            InputStream in;
+            try {
+                in = conn.getInputStream();
+            } catch (IOException ioe) {
+                // drain the error body, if any, so the connection may still be reused
+                InputStream err = conn.getErrorStream();
+                if (err != null) {
+                    try {
+                        readFully(err, -1);
+                    } catch (IOException ignored) {
+                        // the original failure is the one worth reporting
+                    }
+                }
+                throw ioe;
+            }
+
+            Response rsp = new Response(readFully(in, conn.getContentLength()));
+            for (Map.Entry<String, List<String>> header : conn.getHeaderFields().entrySet()) {
+                // the status line is reported under a null name
+                if (header.getKey() != null && !header.getValue().isEmpty()) {
+                    rsp.putHeader(header.getKey(), header.getValue().get(0));
+                }
+            }
+            return rsp;
+
+        } finally {
+            post.finished();
+        }
+    }
+
+    /**
+     * Returns the tighter of a default timeout and one for a single post, either of which may be
+     * 0 for no limit.
+     */
+    protected static int limit (int defaultTimeout, int timeout)
+    {
+        if (defaultTimeout == 0 || timeout == 0) {
+            return Math.max(defaultTimeout, timeout);
+        }
+        return Math.min(defaultTimeout, timeout);
+    }
+
+    /**
+     * Reads the whole of a stream and closes it. If the length of the stream is known, its bytes
+     * are read straight into an array of that size, rather than copied out of a growing buffer.
+     *
+     * @param length The number of bytes in the stream, or -1 if unknown.
+     */
+    protected static byte[] readFully (InputStream in, int length)
+        throws IOException
+    {
+        try {
+            if (length >= 0) {
+                byte[] bytes = new byte[length];
+                for (int read = 0, count; read < length; read += count) {
+                    if ((count = in.read(bytes, read, length - read)) == -1) {
+                        throw new EOFException("Response ended after " + read + " of " +
+                            length + " bytes");
+                    }
+                }
+                return bytes;
+            }
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int count;
+            while ((count = in.read(buf)) != -1) {
+                bos.write(buf, 0, count);
+            }
+            return bos.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    /** A post sent with {@link HttpURLConnection}, which is cancelled by closing its connection. */
+    protected static class HttpPost
+        implements Post
+    {
+        /**
+         * Called once the post's connection is opened, failing if it has already been cancelled.
+         */
+        public synchronized void connected (HttpURLConnection conn)
+            throws IOException
+        {
+            if (_cancelled) {
+                throw new IOException("Post was cancelled");
+            }
+            _conn = conn;
+        }
+
+        /**
+         * Called once the post's response has been read, or it has failed, after which its
+         * connection belongs to the keep-alive pool and must no longer be closed.
+         */
+        public synchronized void finished ()
+        {
+            _conn = null;
+        }
+
+        // from interface Post
+        public void cancel ()
+        {
+            HttpURLConnection conn;
+            synchronized (this) {
+                _cancelled = true;
+                conn = _conn;
+                _conn = null;
+            }
+            if (conn != null) {
+                conn.disconnect();
+            }
+        }
+
+        protected HttpURLConnection _conn;
+        protected boolean _cancelled;
+    }
+
+    protected int _connectTimeout;
+    protected int _readTimeout;
+    protected Executor _executor;
+}
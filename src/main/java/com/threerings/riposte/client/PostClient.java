@@ -18,30 +18,89 @@
 
 package com.threerings.riposte.client;
 
-import java.io.BufferedOutputStream;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.HttpURLConnection;
-import java.net.URL;
+import java.net.SocketTimeoutException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 
 import com.threerings.io.ObjectInputStream;
 import com.threerings.io.ObjectOutputStream;
+import com.threerings.riposte.data.CallCodec;
+import com.threerings.riposte.data.ClassDictionary;
+import com.threerings.riposte.data.DeflaterPool;
+import com.threerings.riposte.data.EncodingBuffer;
+import com.threerings.riposte.data.LatencyHistogram;
+import com.threerings.riposte.data.PostCodes;
+import com.threerings.riposte.data.PostProtocol;
 import com.threerings.riposte.data.StreamableError;
+import com.threerings.riposte.data.VarInt;
 
+import com.google.common.base.Objects;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import static com.threerings.riposte.Log.log;
 
 /**
  * The main client class.
+ *
+ * <p>A client may be shared by any number of threads. By default, each post is sent and answered
+ * on the thread that made the call that started it. Given an executor with
+ * {@link #setMaxInFlight}, making a call only queues it, and posts are sent and answered on the
+ * executor's threads; listeners are notified on those threads too, unless a callback executor is
+ * given with {@link #setCallbackExecutor}. A transport that answers posts on threads of its own,
+ * set with {@link #setTransport}, answers them there instead. Calls' args are encoded when their
+ * post is sent, so they must not be changed once the call has been made.
  */
 public class PostClient
 {
+    /** The lane for calls whose results someone is waiting on, which is the default. */
+    public static final int INTERACTIVE = 0;
+
+    /** A lane for calls that may wait until interactive calls have been sent. */
+    public static final int BACKGROUND = 1;
+
+    /** What to do with a call made when the queue is full. */
+    public enum OverflowPolicy
+    {
+        /** Fail the new call with {@link PostCodes#QUEUE_FULL}. */
+        REJECT,
+
+        /**
+         * Fail the oldest call of the lowest priority lane with {@link PostCodes#QUEUE_FULL} to
+         * make room for the new call, unless every queued call has a higher priority than it.
+         */
+        DROP_OLDEST,
+
+        /**
+         * Have the caller wait until there is room. Callers are only held when posts are sent on
+         * an executor, outside of their {@link #beginBatch} brackets and not from listeners,
+         * since the queue otherwise might not drain while they wait; they are refused instead.
+         */
+        BLOCK
+    }
+
     public PostClient (String serviceAddress)
     {
         this(serviceAddress, null, false, null);
@@ -59,6 +118,7 @@ public class PostClient
     {
         _serviceAddress = serviceAddress;
         _version = version == null ? "" : version;
+        _versionToken = PostProtocol.versionToken(_version);
         _useAuthCode = useAuthCode;
         _defaultListener = defaultListener;
     }
@@ -71,11 +131,21 @@ public class PostClient
      */
     public void shutdown (boolean allowQueueToComplete)
     {
-        if (!_shutdown) {
+        synchronized (_queueLock) {
+            if (_shutdown) {
+                return;
+            }
             _shutdown = true;
+            if (_hedgeTimer != null) {
+                _hedgeTimer.cancel();
+            }
             if (!allowQueueToComplete) {
-                _queue.clear();
+                _lanes.clear();
+                _laneKeys.clear();
+                _queued = 0;
             }
+            // let any blocked callers find that we're shut down
+            _queueLock.notifyAll();
         }
     }
 
@@ -105,12 +175,11 @@ public class PostClient
             PostService marshaller = entry.getValue();
             if (service.isInstance(marshaller)) {
                 marshaller.init(this);
-                PostService existing = _services.get(service);
+                PostService existing = _services.putIfAbsent(service, marshaller);
                 if (existing != null) {
                     throw new IllegalArgumentException("This service has already been registered " +
                         "[service=" + service + ", old=" + existing + ", new=" + marshaller + "]");
                 }
-                _services.put(service, marshaller);
             } else {
                 throw new IllegalArgumentException("Marshaller does not implement service! " +
                     "[service=" + service + ", marshaller=" + marshaller + "]");
@@ -158,160 +227,1915 @@ public class PostClient
     }
 
     /**
-     * This method should only be called by subclasses of PostMarshaller.
-     * @private
+     * Sets the maximum number of calls that may be coalesced into a single HTTP POST. Calls made
+     * while a post is already in progress, or between {@link #beginBatch} and {@link #endBatch},
+     * are queued and then sent together in batches of up to this many calls. The default of 1
+     * sends every call on its own, which is what servers that predate batching require.
      */
-    public void sendRequest (int serviceId, int methodId, Object[] args)
+    public void setMaxBatchSize (int maxBatchSize)
     {
-        final List<PostListener> listeners = Lists.newArrayList();
-        List<Object> others = Lists.newArrayList();
-        for (Object arg : args) {
-            if (arg instanceof PostListener) {
-                listeners.add((PostListener)arg);
-            } else {
-                others.add(arg);
-            }
+        _maxBatchSize = Math.max(1, maxBatchSize);
+    }
+
+    /**
+     * Sets the size, in bytes, above which request bodies are compressed. Smaller requests never
+     * pay for compression. Zero, the default, never compresses requests, which is what servers
+     * that predate compression require. Responses are always accepted in compressed form.
+     */
+    public void setRequestCompressionThreshold (int compressionThreshold)
+    {
+        _compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Switches to the compact request format, which replaces the version string with a short
+     * token and sends ids as variable length ints, saving most of the header bytes of small
+     * calls. Servers that predate the compact format require the original, which is the default.
+     */
+    public void setCompactProtocol (boolean compact)
+    {
+        _compact = compact;
+    }
+
+    /**
+     * Encodes the args and decodes the results of calls with the typed codecs of their
+     * marshallers, where they have them, instead of streaming them as objects. Typed codecs are
+     * only used with the compact protocol, which this enables, and require a server whose
+     * dispatchers were generated with typed codecs too.
+     */
+    public void setTypedCodecs (boolean typed)
+    {
+        _typed = typed;
+        if (typed) {
+            _compact = true;
         }
-        if (listeners.size() == 0 && _defaultListener != null) {
-            listeners.add(_defaultListener);
+    }
+
+    /**
+     * Streams the classes in the given table by token rather than by name, which requires a
+     * server that shares the table. If the server turns out not to, calls are resent without it
+     * and it is dropped. Class dictionaries are only used with the compact protocol, which this
+     * enables.
+     */
+    public void setClassDictionary (ClassDictionary dictionary)
+    {
+        _dictionary = dictionary;
+        if (dictionary != null) {
+            _compact = true;
         }
+    }
 
-        if (_shutdown) {
-            listenersFailed(listeners, "PostClient has been shut down");
-            return;
+    /**
+     * Sets the transport with which requests are posted to the server. The default is an
+     * {@link HttpTransport} without timeouts of its own, which posts on the calling thread. An
+     * {@link Http2Transport} instead multiplexes posts over one connection where the JVM allows.
+     */
+    public void setTransport (PostTransport transport)
+    {
+        _transport = transport;
+    }
+
+    /**
+     * Sets the number of milliseconds a call may wait, from the moment it is made, for its result.
+     * Calls still queued when the time passes fail with {@link PostCodes#DEADLINE_EXCEEDED}, and
+     * the time remaining is sent along so that the server can abandon calls it would only be
+     * answering after we'd stopped listening. Zero, the default, never times out, which is what
+     * servers that predate request timeouts require.
+     */
+    public void setRequestTimeout (int millis)
+    {
+        _requestTimeout = Math.max(0, millis);
+    }
+
+    /**
+     * Allows up to the given number of posts to be outstanding at once, each sent and answered on
+     * a thread from the given executor. Calls made between {@link #beginOrdered} and
+     * {@link #endOrdered} with the same ordering key are still sent one post after another, in
+     * the order they were made, while unrelated calls overtake them. With the default of 1 and no
+     * executor, each post is sent on the thread that made the call and no call overtakes another.
+     * Listeners are notified on whichever thread received the result.
+     */
+    public void setMaxInFlight (int maxInFlight, Executor executor)
+    {
+        if (maxInFlight > 1 && executor == null) {
+            throw new IllegalArgumentException("An executor is needed to send posts concurrently");
         }
+        synchronized (_queueLock) {
+            _maxInFlight = Math.max(1, maxInFlight);
+            _executor = executor;
+        }
+        maybeSendNextRequest();
+    }
 
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        ObjectOutputStream oos = new ObjectOutputStream(bos);
-        try {
-            oos.writeUTF(_version);
-            if (_useAuthCode) {
-                oos.writeUTF(getAuthCode(serviceId, methodId, args));
-            }
-            oos.writeInt(serviceId);
-            oos.writeInt(methodId);
+    /**
+     * Notifies listeners of their calls' results on the given executor, rather than on the thread
+     * that received the result, so that slow listeners don't hold up posts. Listeners of calls
+     * with the same ordering key are only notified in order if the executor runs tasks in the
+     * order they are given to it, as a single thread does. Null, the default, notifies listeners
+     * directly.
+     */
+    public void setCallbackExecutor (Executor executor)
+    {
+        _callbackExecutor = executor;
+    }
 
-        } catch (IOException ioe) {
-            log.warning("Exception encountered writing pre-args values", ioe);
+    /**
+     * Has a second copy of a post sent if the first hasn't been answered in time, so that a slow
+     * server doesn't hold up its calls' results. Only posts whose calls are all to idempotent
+     * methods are hedged, and only if posts are sent with an executor, as set with
+     * {@link #setMaxInFlight}. Whichever copy is answered first is delivered, and the other is
+     * cancelled, which abandons it if the transport is still waiting on it from a thread of its
+     * own, as an {@link HttpTransport} given an executor does; otherwise its answer is ignored
+     * when it arrives.
+     *
+     * @param budget The largest share of posts, as a percentage, that may be hedged. Zero, the
+     *               default, disables hedging.
+     */
+    public void setHedgeBudget (double budget)
+    {
+        _hedgeBudget = Math.max(0, budget);
+    }
+
+    /**
+     * Sets the milliseconds a post may wait for its answer before it is hedged. Zero, the default,
+     * learns the delay from the time taken to answer recent posts, as set with
+     * {@link #setHedgePercentile}.
+     */
+    public void setHedgeDelay (long millis)
+    {
+        _hedgeDelay = Math.max(0, millis);
+    }
+
+    /**
+     * Sets the percentile of recent posts' answer times after which a post is hedged, when the
+     * hedge delay is learned. The default is 95.
+     */
+    public void setHedgePercentile (int percentile)
+    {
+        _hedgePercentile = Math.min(Math.max(percentile, 1), 99);
+    }
+
+    /**
+     * Returns the number of posts for which a second copy was sent.
+     */
+    public long getHedgedPosts ()
+    {
+        return _hedgedPosts.get();
+    }
+
+    /**
+     * Returns the number of hedged posts whose second copy was answered first.
+     */
+    public long getHedgesWon ()
+    {
+        return _hedgesWon.get();
+    }
+
+    /**
+     * Limits the number of calls that may wait in the queue to be sent, and decides what happens
+     * to calls made when it is full. Zero, the default, lets the queue grow without limit. Calls
+     * already queued are kept even if there are more of them than the new limit.
+     */
+    public void setQueueLimit (int limit, OverflowPolicy overflow)
+    {
+        synchronized (_queueLock) {
+            _queueLimit = Math.max(0, limit);
+            _overflow = overflow;
+            _queueLock.notifyAll();
         }
+    }
 
-        try {
-            oos.writeObject(others.toArray(new Object[others.size()]));
-        } catch (IOException ioe) {
-            log.warning("Exception encountered writing args", ioe);
+    /**
+     * Queues the service calls made by this thread from now until the matching call to
+     * {@link #endLane} in the given lane. Calls in a lane are only sent once no calls remain in
+     * lanes with lower numbers, so {@link #INTERACTIVE} calls go ahead of {@link #BACKGROUND}
+     * ones. Calls to beginLane may be nested, in which case the innermost lane applies. A call
+     * with an ordering key joins its key's earlier calls in their lane, if any are still queued,
+     * so as not to overtake them.
+     */
+    public void beginLane (int lane)
+    {
+        if (lane < 0 || lane >= MAX_LANES) {
+            throw new IllegalArgumentException("Lanes are numbered from 0 to " + (MAX_LANES - 1));
         }
-        final byte[] bytes = bos.toByteArray();
+        _callLanes.get().add(lane);
+    }
 
-        _queue.add(new Runnable() {
-            public void run () {
-                try {
-                    HttpURLConnection conn =
-                        (HttpURLConnection) new URL(_serviceAddress).openConnection();
-                    conn.setDoInput(true);
-                    conn.setDoOutput(true);
-                    conn.setUseCaches(false);
-                    conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
-
-                    BufferedOutputStream out =
-                        new BufferedOutputStream(conn.getOutputStream());
-                    out.write(bytes);
-                    out.flush();
-                    out.close();
-
-                    ByteArrayOutputStream bos = new ByteArrayOutputStream();
-                    InputStream in = conn.getInputStream();
-                    int count;
-                    byte[] buf = new byte[1024];
-                    while (-1 < (count = in.read(buf))) {
-                        bos.write(buf, 0, count);
-                    }
-                    requestComplete(listeners, bos.toByteArray());
+    /**
+     * Stops queueing calls in the lane given to the matching call to {@link #beginLane}.
+     */
+    public void endLane ()
+    {
+        List<Integer> lanes = _callLanes.get();
+        if (lanes.isEmpty()) {
+            log.warning("endLane called without a matching beginLane");
+            return;
+        }
+        lanes.remove(lanes.size() - 1);
+    }
 
-                } catch (IOException ioe) {
-                    log.warning("IOException processing request", ioe);
-                    listenersFailed(listeners, ioe.getMessage());
+    /**
+     * Returns the number of calls waiting in the queue to be sent.
+     */
+    public int getQueueDepth ()
+    {
+        synchronized (_queueLock) {
+            return _queued;
+        }
+    }
 
-                } finally {
-                    _postIsPending = false;
-                    maybeSendNextRequest();
-                }
-            }
-        });
-        maybeSendNextRequest();
+    /**
+     * Returns the number of calls waiting to be sent in the given lane.
+     */
+    public int getQueueDepth (int lane)
+    {
+        synchronized (_queueLock) {
+            return (lane < _lanes.size()) ? _lanes.get(lane).size() : 0;
+        }
     }
 
-    protected String getAuthCode (int serviceId, int methodId, Object[] args)
+    /**
+     * Returns the histogram of the time calls spent waiting in the queue to be sent.
+     */
+    public LatencyHistogram getQueueWaits ()
     {
-        return _authCode;
+        return _queueWaits;
     }
 
-    protected void maybeSendNextRequest ()
+    /**
+     * Returns the number of calls refused or dropped because the queue was full.
+     */
+    public long getQueueOverflows ()
     {
-        if (_postIsPending || _queue.size() == 0) {
+        return _queueOverflows.get();
+    }
+
+    /**
+     * Tags the service calls made by this thread from now until the matching call to
+     * {@link #endOrdered} with the given key. Calls with the same key are answered in the order
+     * they were made, regardless of how many posts may be outstanding. Calls to beginOrdered may
+     * be nested, in which case the innermost key applies.
+     */
+    public void beginOrdered (Object key)
+    {
+        _orderingKeys.get().add(key);
+    }
+
+    /**
+     * Stops tagging calls with the key given to the matching call to {@link #beginOrdered}.
+     */
+    public void endOrdered ()
+    {
+        List<Object> keys = _orderingKeys.get();
+        if (keys.isEmpty()) {
+            log.warning("endOrdered called without a matching beginOrdered");
             return;
         }
-        _postIsPending = true;
-        _queue.remove(0).run();
+        keys.remove(keys.size() - 1);
     }
 
-    protected void requestComplete (List<PostListener> listeners, byte[] bytes)
+    /**
+     * Holds the service calls made by this thread from now until the matching call to
+     * {@link #endBatch} in the queue, so that they can be sent together. Other threads' calls are
+     * sent as usual, overtaking the held calls unless they share an ordering key with one. Calls
+     * to beginBatch may be nested.
+     */
+    public void beginBatch ()
     {
-        if (bytes == null) {
-            log.warning("Return value from RPC call is null");
-            listenersFailed(listeners, "Return value from invocation call is null");
+        _batches.get().depth++;
+    }
+
+    /**
+     * Releases the calls held since the matching call to {@link #beginBatch}, sending them in
+     * batches of up to the maximum batch size.
+     */
+    public void endBatch ()
+    {
+        Batch batch = _batches.get();
+        if (batch.depth == 0) {
+            log.warning("endBatch called without a matching beginBatch");
+            return;
+        }
+        if (--batch.depth > 0) {
             return;
         }
+        synchronized (_queueLock) {
+            for (PendingCall call : batch.calls) {
+                call.held = false;
+            }
+        }
+        batch.calls.clear();
+        maybeSendNextRequest();
+    }
 
-        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes));
-        Object result;
+    /**
+     * This method should only be called by subclasses of PostMarshaller.
+     * @private
+     */
+    public void sendRequest (int serviceId, int methodId, Object[] args)
+    {
+        sendRequest(serviceId, methodId, args, null);
+    }
 
-        try {
-            result = ois.readObject();
+    /**
+     * This method should only be called by subclasses of PostMarshaller.
+     *
+     * @param codec The codec for the call's args and result, or null to stream them as objects.
+     * @private
+     */
+    public void sendRequest (int serviceId, int methodId, Object[] args, CallCodec codec)
+    {
+        sendRequest(serviceId, methodId, args, codec, 0, false);
+    }
 
-        } catch (ClassNotFoundException e) {
-            log.warning("Exception from readObject", e);
-            listenersFailed(listeners, e.getMessage());
-            return;
-        } catch (IOException e) {
-            log.warning("Exception from readObject", e);
-            listenersFailed(listeners, e.getMessage());
+    /**
+     * This method should only be called by subclasses of PostMarshaller.
+     *
+     * @param codec The codec for the call's args and result, or null to stream them as objects.
+     * @param revalidatedResults The number of results of the method to keep and revalidate with
+     *                           the server, or 0 to always receive results in full.
+     * @param idempotent Whether the call may be sent more than once.
+     * @private
+     */
+    public void sendRequest (int serviceId, int methodId, Object[] args, CallCodec codec,
+                             int revalidatedResults, boolean idempotent)
+    {
+        // count the listeners first so that the arguments can be split out without any copying
+        // in the usual case of a single listener
+        int listenerCount = 0;
+        PostListener listener = null;
+        for (Object arg : args) {
+            if (arg instanceof PostListener) {
+                listener = (PostListener)arg;
+                listenerCount++;
+            }
+        }
+        final List<PostListener> listeners;
+        Object[] others = args;
+        if (listenerCount == 0) {
+            listeners = (_defaultListener == null) ? Collections.<PostListener>emptyList() :
+                Collections.singletonList(_defaultListener);
+        } else if (listenerCount == 1) {
+            listeners = Collections.singletonList(listener);
+        } else {
+            listeners = Lists.newArrayListWithCapacity(listenerCount);
+        }
+        if (listenerCount > 0) {
+            others = new Object[args.length - listenerCount];
+            for (int ii = 0, jj = 0; ii < args.length; ii++) {
+                if (!(args[ii] instanceof PostListener)) {
+                    others[jj++] = args[ii];
+                } else if (listenerCount > 1) {
+                    listeners.add((PostListener)args[ii]);
+                }
+            }
+        }
+
+        String authCode = _useAuthCode ? getAuthCode(serviceId, methodId, args) : null;
+        List<Object> keys = _orderingKeys.get();
+        PendingCall call = new PendingCall(serviceId, methodId, others, listeners, authCode, codec,
+            keys.isEmpty() ? null : keys.get(keys.size() - 1));
+        call.idempotent = idempotent;
+        List<Integer> lanes = _callLanes.get();
+        call.lane = lanes.isEmpty() ? INTERACTIVE : lanes.get(lanes.size() - 1);
+        if (revalidatedResults > 0 && _compact) {
+            call.results = getResultCache(serviceId, methodId, revalidatedResults);
+            call.resultKey = getResultKey(authCode, call.args);
+        }
+
+        Batch batch = _batches.get();
+        call.held = (batch.depth > 0);
+
+        PendingCall refused;
+        boolean shutdown;
+        synchronized (_queueLock) {
+            refused = _shutdown ? call : enqueue(call);
+            shutdown = _shutdown;
+        }
+        if (call.held && refused != call) {
+            batch.calls.add(call);
+        }
+        if (refused == call && shutdown) {
+            listenersFailed(listeners, "PostClient has been shut down");
             return;
         }
+        if (refused != null) {
+            _queueOverflows.incrementAndGet();
+            listenersFailed(refused.listeners, PostCodes.QUEUE_FULL);
+            if (refused == call) {
+                return;
+            }
+        }
+        maybeSendNextRequest();
+    }
 
-        if (result instanceof StreamableError) {
-            listenersFailed(listeners, ((StreamableError)result).getCause());
+    /**
+     * Adds a call to the queue, making room for it according to the overflow policy if the queue
+     * is full. The caller must hold <code>_queueLock</code>.
+     *
+     * @return the call refused to make room, which may be the given call, or null if none was.
+     */
+    protected PendingCall enqueue (PendingCall call)
+    {
+        while (_queueLimit > 0 && _queued >= _queueLimit) {
+            if (_overflow == OverflowPolicy.BLOCK && mayBlock()) {
+                try {
+                    _queueLock.wait();
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return call;
+                }
+                if (_shutdown) {
+                    return call;
+                }
+                continue;
+            }
+            if (_overflow == OverflowPolicy.DROP_OLDEST) {
+                PendingCall dropped = dropOldest(call.lane);
+                if (dropped != null) {
+                    addToLane(call, false);
+                    return dropped;
+                }
+            }
+            return call;
+        }
+        addToLane(call, false);
+        return null;
+    }
+
+    /**
+     * Returns true if the calling thread may wait for room in the queue. It may not if posts are
+     * sent on the calling thread, or it holds calls in a batch, since the queue can't drain while
+     * it waits, nor if it is notifying listeners, since the thread that would drain the queue, or
+     * deliver the results that let it drain, may be the one waiting.
+     */
+    protected boolean mayBlock ()
+    {
+        return _executor != null && _batches.get().depth == 0 && _notifying.get()[0] == 0;
+    }
+
+    /**
+     * Removes the oldest call of the lowest priority lane that holds any, provided that lane is
+     * no higher in priority than the given one. The caller must hold <code>_queueLock</code>.
+     *
+     * @return the removed call, or null if there was none that could be removed.
+     */
+    protected PendingCall dropOldest (int lane)
+    {
+        for (int ii = _lanes.size() - 1; ii >= lane; ii--) {
+            LinkedList<PendingCall> queue = _lanes.get(ii);
+            if (!queue.isEmpty()) {
+                PendingCall dropped = queue.removeFirst();
+                removedFromLane(dropped);
+                return dropped;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Adds a call to the back of its lane, or the front if it is being sent again, moving it to
+     * the lane of its ordering key's queued calls, if it has any. The caller must hold
+     * <code>_queueLock</code>.
+     */
+    protected void addToLane (PendingCall call, boolean first)
+    {
+        if (call.orderingKey != null) {
+            int[] laneKey = _laneKeys.get(call.orderingKey);
+            if (laneKey == null) {
+                _laneKeys.put(call.orderingKey, laneKey = new int[] { call.lane, 0 });
+            }
+            call.lane = laneKey[0];
+            laneKey[1]++;
+        }
+        while (_lanes.size() <= call.lane) {
+            _lanes.add(new LinkedList<PendingCall>());
+        }
+        if (first) {
+            _lanes.get(call.lane).addFirst(call);
         } else {
-            listenersProcessed(listeners, result);
+            _lanes.get(call.lane).addLast(call);
         }
+        _queued++;
     }
 
-    // TODO: perhaps find a way to type this. Might need to add a Class<Foo> instance to the
-    // call structure for service methods so we can typecheck the result here. At least if a person
-    // sticks to generated code, the implicit casts should be safe.
-    @SuppressWarnings("unchecked")
-    protected static void listenersProcessed (List<PostListener> listeners, Object result)
+    /**
+     * Does the bookkeeping for a call that has been removed from its lane. The caller must hold
+     * <code>_queueLock</code>.
+     */
+    protected void removedFromLane (PendingCall call)
     {
-        for (PostListener listener : listeners) {
-            if (listener instanceof PostResultListener<?>) {
-                ((PostResultListener)listener).requestProcessed(result);
+        _queued--;
+        if (call.orderingKey != null) {
+            int[] laneKey = _laneKeys.get(call.orderingKey);
+            if (--laneKey[1] == 0) {
+                _laneKeys.remove(call.orderingKey);
             }
         }
+        _queueLock.notifyAll();
     }
 
-    protected static void listenersFailed (List<PostListener> listeners, String cause)
+    /**
+     * Returns the results kept for the given method, creating the table if need be.
+     */
+    protected ResultCache getResultCache (int serviceId, int methodId, int maxEntries)
     {
-        for (PostListener listener : listeners) {
-            listener.requestFailed(cause);
+        Long methodKey = ((long)serviceId << 32) | (methodId & 0xFFFFFFFFL);
+        ResultCache cache = _resultCaches.get(methodKey);
+        if (cache == null) {
+            ResultCache created = new ResultCache(maxEntries);
+            cache = _resultCaches.putIfAbsent(methodKey, created);
+            if (cache == null) {
+                cache = created;
+            }
         }
+        return cache;
     }
 
-    protected String _serviceAddress;
-    protected Map<Class<? extends PostService>, PostService> _services = Maps.newHashMap();
-    protected String _version = "";
-    protected boolean _useAuthCode;
-    protected String _authCode = "";
-    protected List<Runnable> _queue = Lists.newArrayList();
-    protected boolean _postIsPending;
+    /**
+     * Returns the key identifying the results of a call with the given auth code and args among
+     * those of its method, or null if the args can't be encoded.
+     */
+    protected ResultKey getResultKey (String authCode, Object[] args)
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try {
+            new ObjectOutputStream(bos).writeObject(args);
+        } catch (IOException ioe) {
+            log.warning("Unable to encode args for result revalidation", ioe);
+            return null;
+        }
+        return new ResultKey(authCode, bos.toByteArray());
+    }
+
+    protected String getAuthCode (int serviceId, int methodId, Object[] args)
+    {
+        return _authCode;
+    }
+
+    protected void maybeSendNextRequest ()
+    {
+        while (true) {
+            final List<PendingCall> calls;
+            Executor executor;
+            synchronized (_queueLock) {
+                if (_inFlight >= _maxInFlight) {
+                    return;
+                }
+                calls = takeCalls();
+                if (calls == null) {
+                    return;
+                }
+                _inFlight++;
+                executor = _executor;
+            }
+
+            if (executor == null) {
+                postCalls(calls);
+            } else {
+                executor.execute(new Runnable() {
+                    public void run () {
+                        postCalls(calls);
+                        maybeSendNextRequest();
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Removes from the queue the calls to send in the next post, or returns null if none may be
+     * sent yet. The caller must hold <code>_queueLock</code>.
+     */
+    protected List<PendingCall> takeCalls ()
+    {
+        // calls in a batch share an auth code, so only coalesce calls that agree on it, and never
+        // let a call overtake an earlier one with its ordering key
+        List<PendingCall> calls = null;
+        Set<Object> heldKeys = null;
+        long now = System.currentTimeMillis();
+        boolean full = false;
+        for (int ii = 0; ii < _lanes.size() && !full; ii++) {
+            for (Iterator<PendingCall> it = _lanes.get(ii).iterator(); it.hasNext(); ) {
+                PendingCall call = it.next();
+                if (call.held) {
+                    // held back until its caller's batch ends, along with later calls with its key
+                    if (call.orderingKey != null) {
+                        if (heldKeys == null) {
+                            heldKeys = Sets.newHashSet();
+                        }
+                        heldKeys.add(call.orderingKey);
+                    }
+                    continue;
+                }
+                if (call.orderingKey != null && (_busyKeys.contains(call.orderingKey) ||
+                        (heldKeys != null && heldKeys.contains(call.orderingKey)))) {
+                    // held back until the post with its key's earlier calls is answered
+                    continue;
+                }
+                if (calls == null) {
+                    calls = Lists.newArrayList();
+                } else if (!Objects.equal(calls.get(0).authCode, call.authCode)) {
+                    full = true;
+                    break;
+                }
+                calls.add(call);
+                call.released = false;
+                it.remove();
+                removedFromLane(call);
+                _queueWaits.record((now - call.queued) * 1000000L);
+                if (calls.size() == _maxBatchSize) {
+                    full = true;
+                    break;
+                }
+            }
+        }
+
+        if (calls != null) {
+            for (PendingCall call : calls) {
+                if (call.orderingKey != null) {
+                    _busyKeys.add(call.orderingKey);
+                }
+            }
+        }
+        return calls;
+    }
+
+    /**
+     * Sends the given calls, taken from the queue by {@link #takeCalls}, and then makes room for
+     * the next post, or leaves that to the post's callback if it is still being answered.
+     */
+    protected void postCalls (List<PendingCall> calls)
+    {
+        boolean answering = false;
+        try {
+            waitForBackoff();
+            answering = sendCalls(calls);
+        } finally {
+            if (!answering) {
+                releaseCalls(calls);
+            }
+        }
+    }
+
+    /**
+     * Makes room for the next post once the given calls have been answered, unless that has
+     * already been done because a hedge answered them first.
+     *
+     * @return true if room was made.
+     */
+    protected boolean releaseCalls (List<PendingCall> calls)
+    {
+        synchronized (_queueLock) {
+            for (PendingCall call : calls) {
+                if (call.released) {
+                    return false;
+                }
+            }
+            _inFlight--;
+            for (PendingCall call : calls) {
+                call.released = true;
+                if (call.orderingKey != null) {
+                    _busyKeys.remove(call.orderingKey);
+                }
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Puts the calls of a post back at the front of their lanes to be sent again. The post's room
+     * and its calls' ordering keys are given up first, so that the calls can't be taken again
+     * while it is still counted, and copies are queued so that the post's own release is a no-op.
+     * Calls that don't fit in the queue fail.
+     */
+    protected void requeueCalls (List<PendingCall> calls)
+    {
+        List<PendingCall> refused = Lists.newArrayList();
+        synchronized (_queueLock) {
+            releaseCalls(calls);
+            int room = (_queueLimit > 0) ? Math.max(_queueLimit - _queued, 0) : calls.size();
+            for (int ii = Math.min(room, calls.size()) - 1; ii >= 0; ii--) {
+                addToLane(calls.get(ii).copy(), true);
+            }
+            refused.addAll(calls.subList(Math.min(room, calls.size()), calls.size()));
+        }
+        for (PendingCall call : refused) {
+            _queueOverflows.incrementAndGet();
+            listenersFailed(call.listeners, PostCodes.QUEUE_FULL);
+        }
+    }
+
+    /**
+     * Frees the ordering keys of calls dropped from a post because they expired before it was
+     * sent, unless calls still in the post share them.
+     */
+    protected void releaseExpired (List<PendingCall> calls, List<PendingCall> expired)
+    {
+        synchronized (_queueLock) {
+            for (PendingCall call : expired) {
+                if (call.orderingKey == null) {
+                    continue;
+                }
+                boolean shared = false;
+                for (PendingCall live : calls) {
+                    shared = shared || call.orderingKey.equals(live.orderingKey);
+                }
+                if (!shared) {
+                    _busyKeys.remove(call.orderingKey);
+                }
+            }
+        }
+    }
+
+    /**
+     * Called when the server refuses a call because it is overloaded or we are calling too often.
+     * Further requests are held back for an exponentially growing, randomized interval until a
+     * call succeeds again.
+     */
+    protected void noteOverloaded ()
+    {
+        _backoff = (_backoff == 0) ? INITIAL_BACKOFF : Math.min(_backoff * 2, MAX_BACKOFF);
+        _backoffUntil = System.currentTimeMillis() + _backoff / 2 +
+            (long)(Math.random() * _backoff / 2);
+        log.info("Server is overloaded, backing off", "millis", _backoff);
+    }
+
+    /**
+     * Blocks until any backoff requested by an overloaded server has elapsed.
+     */
+    protected void waitForBackoff ()
+    {
+        long wait = _backoffUntil - System.currentTimeMillis();
+        if (wait > 0) {
+            try {
+                Thread.sleep(wait);
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Posts the given calls to the server, as a batch if there is more than one, and notifies
+     * their listeners of the results. Calls whose deadline has passed are failed and removed from
+     * the list instead, so that the post makes room for the next with only the calls it sent.
+     *
+     * @return true if the post is still being answered, in which case its callback makes room
+     * for the next post once it is, or false if it is done.
+     */
+    protected boolean sendCalls (List<PendingCall> calls)
+    {
+        // the batch must be answered before the earliest of its calls' deadlines
+        int timeout = 0;
+        if (_requestTimeout > 0) {
+            long now = System.currentTimeMillis();
+            List<PendingCall> expired = null;
+            for (Iterator<PendingCall> it = calls.iterator(); it.hasNext(); ) {
+                PendingCall call = it.next();
+                long remaining = call.queued + _requestTimeout - now;
+                if (remaining <= 0) {
+                    it.remove();
+                    if (expired == null) {
+                        expired = Lists.newArrayList();
+                    }
+                    expired.add(call);
+                } else {
+                    timeout = (timeout == 0) ? (int)remaining : Math.min(timeout, (int)remaining);
+                }
+            }
+            if (expired != null) {
+                releaseExpired(calls, expired);
+                for (PendingCall call : expired) {
+                    listenersFailed(call.listeners, PostCodes.DEADLINE_EXCEEDED);
+                }
+            }
+            if (calls.isEmpty()) {
+                return false;
+            }
+        }
+
+        EncodingBuffer body = _requestBuffers.acquire();
+        Map<String, String> headers = REQUEST_HEADERS;
+        try {
+            encodeCalls(calls, timeout, body);
+            if (_compressionThreshold > 0 && body.size() >= _compressionThreshold) {
+                EncodingBuffer compressed = _requestBuffers.acquire();
+                _deflaters.deflate(body.getBuffer(), 0, body.size(), compressed);
+                _requestBuffers.release(body);
+                body = compressed;
+                headers = DEFLATED_REQUEST_HEADERS;
+            }
+        } catch (IOException ioe) {
+            _requestBuffers.release(body);
+            log.warning("Exception encountered writing request", ioe);
+            for (PendingCall call : calls) {
+                listenersFailed(call.listeners, ioe.getMessage());
+            }
+            return false;
+        }
+
+        Hedge hedge = maybeHedge(calls, body, headers, timeout);
+        PostCallback callback = new PostCallback(calls, body, timeout, hedge);
+        PostTransport.Post post = _transport.post(
+            _serviceAddress, body.getBuffer(), body.size(), headers, timeout, callback);
+        if (hedge != null) {
+            hedge.started(callback, post);
+        }
+        return callback.started();
+    }
+
+    /**
+     * Hands the calls of a post their results from the server's response.
+     */
+    protected void responseReceived (List<PendingCall> calls, PostTransport.Response rsp)
+    {
+        byte[] body = rsp.body;
+        if (PostProtocol.DEFLATE.equals(rsp.getHeader("Content-Encoding"))) {
+            try {
+                body = inflate(body);
+            } catch (IOException ioe) {
+                postFailed(calls, ioe, 0);
+                return;
+            }
+        }
+
+        if (_compact) {
+            compactComplete(calls, body);
+        } else if (calls.size() == 1) {
+            requestComplete(calls.get(0).listeners, body);
+        } else {
+            batchComplete(calls, rsp.getHeader(PostProtocol.BATCH_HEADER), body);
+        }
+    }
+
+    /**
+     * Fails the calls of a post that received no response.
+     *
+     * @param timeout The milliseconds we waited for the response, or 0 for no limit.
+     */
+    protected void postFailed (List<PendingCall> calls, IOException ioe, int timeout)
+    {
+        if (ioe instanceof SocketTimeoutException) {
+            log.warning("Timed out waiting for response", "timeout", timeout);
+            for (PendingCall call : calls) {
+                listenersFailed(call.listeners, PostCodes.DEADLINE_EXCEEDED);
+            }
+
+        } else {
+            log.warning("IOException processing request", ioe);
+            for (PendingCall call : calls) {
+                listenersFailed(call.listeners, ioe.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Arranges for a second copy of a post to be sent if the first is slow to be answered, if
+     * hedging is enabled, every call in the post is idempotent, and the budget allows.
+     *
+     * @return the hedge that decides which copy's answer is delivered, or null if the post isn't
+     * hedged.
+     */
+    protected Hedge maybeHedge (List<PendingCall> calls, EncodingBuffer body,
+                                Map<String, String> headers, int timeout)
+    {
+        double budget = _hedgeBudget;
+        if (budget <= 0) {
+            return null;
+        }
+        // every post earns a fraction of a hedge, so hedges stay within the budget's share
+        long earned = (long)(budget * 10), tokens;
+        do {
+            tokens = _hedgeTokens.get();
+        } while (!_hedgeTokens.compareAndSet(tokens, Math.min(tokens + earned, MAX_HEDGE_TOKENS)));
+
+        Executor executor = _executor;
+        long delay = (_hedgeDelay > 0) ? _hedgeDelay : _learnedHedgeDelay;
+        if (executor == null || delay <= 0 || (timeout > 0 && delay >= timeout)) {
+            return null;
+        }
+        for (PendingCall call : calls) {
+            if (!call.idempotent) {
+                return null;
+            }
+        }
+
+        // the first copy returns its buffer to the pool when it's done, so the hedge needs its own
+        Hedge hedge = new Hedge(calls, body.toByteArray(), headers,
+            (timeout > 0) ? (int)(timeout - delay) : 0, executor);
+        return scheduleHedge(hedge, delay) ? hedge : null;
+    }
+
+    /**
+     * Spends one hedge from the budget, returning false if there is none to spend.
+     */
+    protected boolean takeHedgeToken ()
+    {
+        long tokens;
+        do {
+            tokens = _hedgeTokens.get();
+            if (tokens < HEDGE_TOKEN) {
+                return false;
+            }
+        } while (!_hedgeTokens.compareAndSet(tokens, tokens - HEDGE_TOKEN));
+        return true;
+    }
+
+    /**
+     * Schedules a hedge to run after the given delay, creating the timer on which hedges run if
+     * need be. Returns false if the client has been shut down, and its timer with it.
+     */
+    protected boolean scheduleHedge (Hedge hedge, long delay)
+    {
+        synchronized (_queueLock) {
+            if (_shutdown) {
+                return false;
+            }
+            if (_hedgeTimer == null) {
+                _hedgeTimer = new Timer("PostClient hedges", true);
+            }
+            try {
+                _hedgeTimer.schedule(hedge, delay);
+            } catch (IllegalStateException ise) {
+                // the timer has died, so post without a hedge and start a new one next time
+                log.warning("Hedge timer failed, not hedging post", "error", ise);
+                _hedgeTimer = null;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Records the time taken to answer a post, from which the hedge delay is learned.
+     */
+    protected void recordLatency (long nanos)
+    {
+        LatencyHistogram latencies = _latencies;
+        latencies.record(nanos);
+        long count = latencies.getCount();
+        if (count % HEDGE_DELAY_INTERVAL == 0) {
+            long millis = latencies.getPercentile(_hedgePercentile / 100.0) / 1000000;
+            _learnedHedgeDelay = Math.max(millis, 1);
+        }
+        if (count >= HEDGE_DELAY_WINDOW) {
+            // start afresh, so the delay follows the server as it speeds up or slows down
+            _latencies = new LatencyHistogram();
+        }
+    }
+
+    /**
+     * Decompresses a response body sent in the "deflate" encoding.
+     */
+    protected static byte[] inflate (byte[] body)
+        throws IOException
+    {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length * 4);
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(body));
+        int count;
+        byte[] buf = new byte[1024];
+        while (-1 < (count = in.read(buf))) {
+            bos.write(buf, 0, count);
+        }
+        in.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Encodes the request header followed by the given calls into the given buffer.
+     *
+     * @param timeout The milliseconds the server has to answer, or 0 for no limit.
+     */
+    protected void encodeCalls (List<PendingCall> calls, int timeout, EncodingBuffer out)
+        throws IOException
+    {
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        if (_compact) {
+            encodeCompactCalls(calls, timeout, oos);
+            return;
+        }
+        oos.writeUTF(_version);
+        if (_useAuthCode) {
+            oos.writeUTF(calls.get(0).authCode);
+        }
+        if (timeout > 0) {
+            oos.writeInt(PostProtocol.TIMEOUT);
+            oos.writeInt(timeout);
+        }
+        if (calls.size() > 1) {
+            oos.writeInt(PostProtocol.BATCH);
+            oos.writeInt(calls.size());
+        }
+        for (PendingCall call : calls) {
+            oos.writeInt(call.serviceId);
+            oos.writeInt(call.methodId);
+            oos.writeObject(call.args);
+        }
+    }
+
+    /**
+     * Encodes the given calls in the compact format described by {@link PostProtocol}.
+     */
+    protected void encodeCompactCalls (List<PendingCall> calls, int timeout,
+                                       ObjectOutputStream oos)
+        throws IOException
+    {
+        // the whole request is typed or not, so every call must have a codec
+        boolean typed = _typed;
+        for (int ii = 0; typed && ii < calls.size(); ii++) {
+            typed = (calls.get(ii).codec != null);
+        }
+
+        int flags = typed ? PostProtocol.FLAG_TYPED : 0;
+        ClassDictionary dictionary = _dictionary;
+        if (dictionary != null) {
+            flags |= PostProtocol.FLAG_DICTIONARY;
+        }
+        if (_useAuthCode) {
+            flags |= PostProtocol.FLAG_AUTH;
+        }
+        if (timeout > 0) {
+            flags |= PostProtocol.FLAG_TIMEOUT;
+        }
+        if (calls.size() > 1) {
+            flags |= PostProtocol.FLAG_BATCH;
+        }
+        for (PendingCall call : calls) {
+            if (call.resultKey != null) {
+                flags |= PostProtocol.FLAG_VALIDATORS;
+            }
+        }
+        oos.writeByte(PostProtocol.MAGIC);
+        oos.writeByte(PostProtocol.COMPACT_VERSION);
+        oos.writeByte(flags);
+        oos.writeInt(_versionToken);
+        if (dictionary != null) {
+            oos.writeInt(dictionary.getHash());
+            dictionary.seed(oos);
+        }
+        if (_useAuthCode) {
+            oos.writeUTF(calls.get(0).authCode);
+        }
+        if (timeout > 0) {
+            VarInt.write(oos, timeout);
+        }
+        if (calls.size() > 1) {
+            VarInt.write(oos, calls.size());
+        }
+        for (PendingCall call : calls) {
+            VarInt.write(oos, call.serviceId);
+            VarInt.write(oos, call.methodId);
+            if ((flags & PostProtocol.FLAG_VALIDATORS) != 0) {
+                writeValidator(call, oos);
+            }
+            if (typed) {
+                call.codec.encodeArgs(call.methodId, call.args, oos);
+            } else {
+                oos.writeObject(call.args);
+            }
+        }
+    }
+
+    /**
+     * Writes whether the given call wants its result's validator and, if we have kept a result
+     * of the call, that result's validator.
+     */
+    protected void writeValidator (PendingCall call, ObjectOutputStream oos)
+        throws IOException
+    {
+        if (call.resultKey == null) {
+            oos.writeByte(PostProtocol.VALIDATOR_NONE);
+            return;
+        }
+        synchronized (call.results) {
+            call.cached = call.results.get(call.resultKey);
+        }
+        if (call.cached == null) {
+            oos.writeByte(PostProtocol.VALIDATOR_WANTED);
+        } else {
+            oos.writeByte(PostProtocol.VALIDATOR_SENT);
+            oos.writeLong(call.cached.validator);
+        }
+    }
+
+    protected void requestComplete (List<PostListener> listeners, byte[] bytes)
+    {
+        if (bytes == null) {
+            log.warning("Return value from RPC call is null");
+            listenersFailed(listeners, "Return value from invocation call is null");
+            return;
+        }
+        resultReceived(listeners, new ByteArrayInputStream(bytes));
+    }
+
+    /**
+     * Hands each call in a batch its own result from the server's response.
+     *
+     * @param countHeader The value of the response's {@link PostProtocol#BATCH_HEADER}.
+     */
+    protected void batchComplete (List<PendingCall> calls, String countHeader, byte[] bytes)
+    {
+        List<PostListener> all = Lists.newArrayList();
+        for (PendingCall call : calls) {
+            all.addAll(call.listeners);
+        }
+        if (countHeader == null) {
+            // the server rejected the batch as a whole, so its one error applies to every call
+            requestComplete(all, bytes);
+            return;
+        }
+        if (!String.valueOf(calls.size()).equals(countHeader)) {
+            log.warning("Batch response has the wrong number of results", "calls", calls.size(),
+                "results", countHeader);
+            listenersFailed(all, PostCodes.STREAMING_ERROR);
+            return;
+        }
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int offset = 0;
+        for (PendingCall call : calls) {
+            int length;
+            try {
+                length = in.readInt();
+                in.skipBytes(length);
+            } catch (IOException ioe) {
+                log.warning("Batch response was truncated", ioe);
+                listenersFailed(call.listeners, PostCodes.STREAMING_ERROR);
+                continue;
+            }
+            offset += 4;
+            resultReceived(call.listeners, new ByteArrayInputStream(bytes, offset, length));
+            offset += length;
+        }
+    }
+
+    /**
+     * Hands the calls of a compact request their results from the server's response.
+     */
+    protected void compactComplete (List<PendingCall> calls, byte[] bytes)
+    {
+        List<PostListener> all = Lists.newArrayList();
+        for (PendingCall call : calls) {
+            all.addAll(call.listeners);
+        }
+        if (bytes.length < 2 || (bytes[0] & 0xFF) != PostProtocol.MAGIC) {
+            // the server refused the request before reading it, with a single plain error
+            requestComplete(all, bytes);
+            return;
+        }
+
+        if ((bytes[1] & PostProtocol.FLAG_DICTIONARY) != 0) {
+            // other posts sent with the dictionary may be refused after we've stopped using it,
+            // and their calls need resending all the same
+            ClassDictionary dictionary = _dictionary;
+            if (dictionary != null) {
+                log.warning("Server doesn't share our class dictionary, resending without it",
+                    "hash", Integer.toHexString(dictionary.getHash()));
+                _dictionary = null;
+            }
+            requeueCalls(calls);
+            return;
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes, 2, bytes.length - 2);
+        boolean typed = (bytes[1] & PostProtocol.FLAG_TYPED) != 0;
+        boolean validators = (bytes[1] & PostProtocol.FLAG_VALIDATORS) != 0;
+        if ((bytes[1] & PostProtocol.FLAG_BATCH) == 0) {
+            // either a single call's result, or an error that failed every call in the batch
+            if (typed || validators) {
+                callResultReceived(calls.get(0), in, typed, validators);
+            } else {
+                resultReceived(all, in);
+            }
+            return;
+        }
+
+        try {
+            int count = VarInt.read(in);
+            if (count != calls.size()) {
+                log.warning("Batch response has the wrong number of results",
+                    "calls", calls.size(), "results", count);
+                listenersFailed(all, PostCodes.STREAMING_ERROR);
+                return;
+            }
+            for (PendingCall call : calls) {
+                int length = VarInt.read(in);
+                int offset = bytes.length - in.available();
+                if (in.skip(length) != length) {
+                    log.warning("Batch response was truncated");
+                    listenersFailed(call.listeners, PostCodes.STREAMING_ERROR);
+                    continue;
+                }
+                callResultReceived(call, new ByteArrayInputStream(bytes, offset, length), typed,
+                    validators);
+            }
+        } catch (IOException ioe) {
+            log.warning("Batch response was truncated", ioe);
+            listenersFailed(all, PostCodes.STREAMING_ERROR);
+        }
+    }
+
+    /**
+     * Decodes the result of a single call of a compact request and notifies the call's listeners
+     * of it.
+     *
+     * @param validators Whether results of calls that wanted validators are preceded by them.
+     */
+    protected void callResultReceived (PendingCall call, InputStream bytes, boolean typed,
+                                       boolean validators)
+    {
+        List<PostListener> listeners = call.listeners;
+        if (validators && call.resultKey != null) {
+            try {
+                if (bytes.read() == PostProtocol.RESULT_NOT_MODIFIED) {
+                    if (call.cached == null) {
+                        log.warning("Not modified reply to a call with no kept result");
+                        listenersFailed(listeners, PostCodes.STREAMING_ERROR);
+                    } else {
+                        resultDecoded(listeners, call.cached.result);
+                    }
+                    return;
+                }
+                // keep the new result, once it's decoded, before any other listener sees it
+                listeners = Lists.newArrayList(listeners);
+                listeners.add(0, new ResultKeeper(call, new DataInputStream(bytes).readLong()));
+            } catch (IOException ioe) {
+                log.warning("Exception reading result validator", ioe);
+                listenersFailed(listeners, ioe.getMessage());
+                return;
+            }
+        }
+        if (typed) {
+            typedResultReceived(call, listeners, bytes);
+        } else {
+            resultReceived(listeners, bytes);
+        }
+    }
+
+    /**
+     * Decodes a single result from the server and notifies the listeners of it.
+     */
+    protected void resultReceived (List<PostListener> listeners, InputStream bytes)
+    {
+        ObjectInputStream ois = createInputStream(bytes);
+        Object result;
+
+        try {
+            result = ois.readObject();
+
+        } catch (ClassNotFoundException e) {
+            log.warning("Exception from readObject", e);
+            listenersFailed(listeners, e.getMessage());
+            return;
+        } catch (IOException e) {
+            log.warning("Exception from readObject", e);
+            listenersFailed(listeners, e.getMessage());
+            return;
+        }
+        resultDecoded(listeners, result);
+    }
+
+    /**
+     * Decodes a single result written by a call's codec, or the error sent in its place, and
+     * notifies the given listeners of it.
+     */
+    protected void typedResultReceived (PendingCall call, List<PostListener> listeners,
+                                        InputStream bytes)
+    {
+        ObjectInputStream ois = createInputStream(bytes);
+        Object result;
+        try {
+            if (ois.readUnsignedByte() == PostProtocol.TYPED_ERROR) {
+                result = ois.readObject();
+            } else {
+                result = call.codec.decodeResult(call.methodId, ois);
+            }
+
+        } catch (ClassNotFoundException e) {
+            log.warning("Exception decoding typed result", e);
+            listenersFailed(listeners, e.getMessage());
+            return;
+        } catch (IOException e) {
+            log.warning("Exception decoding typed result", e);
+            listenersFailed(listeners, e.getMessage());
+            return;
+        }
+        resultDecoded(listeners, result);
+    }
+
+    /**
+     * Creates a stream from which to read a result, able to read classes streamed with our class
+     * dictionary, if we have one.
+     */
+    protected ObjectInputStream createInputStream (InputStream bytes)
+    {
+        ObjectInputStream ois = new ObjectInputStream(bytes);
+        ClassDictionary dictionary = _dictionary;
+        if (dictionary != null) {
+            dictionary.seed(ois);
+        }
+        return ois;
+    }
+
+    /**
+     * Notifies the listeners of a call of its decoded result or error.
+     */
+    protected void resultDecoded (List<PostListener> listeners, Object result)
+    {
+        if (result instanceof StreamableError) {
+            String cause = ((StreamableError)result).getCause();
+            if (PostCodes.OVERLOADED.equals(cause) || PostCodes.RATE_LIMITED.equals(cause)) {
+                noteOverloaded();
+            }
+            listenersFailed(listeners, cause);
+        } else {
+            _backoff = 0;
+            listenersProcessed(listeners, result);
+        }
+    }
+
+    /**
+     * Notifies the given listeners of a call's result, on the callback executor if we have one.
+     */
+    protected void listenersProcessed (final List<PostListener> listeners, final Object result)
+    {
+        Executor callbacks = _callbackExecutor;
+        if (callbacks == null) {
+            notifyingProcessed(listeners, result);
+            return;
+        }
+        callbacks.execute(new Runnable() {
+            public void run () {
+                notifyingProcessed(listeners, result);
+            }
+        });
+    }
+
+    /**
+     * Notifies the given listeners of a call's failure, on the callback executor if we have one.
+     */
+    protected void listenersFailed (final List<PostListener> listeners, final String cause)
+    {
+        Executor callbacks = _callbackExecutor;
+        if (callbacks == null) {
+            notifyingFailed(listeners, cause);
+            return;
+        }
+        callbacks.execute(new Runnable() {
+            public void run () {
+                notifyingFailed(listeners, cause);
+            }
+        });
+    }
+
+    /**
+     * Notifies the given listeners of a call's result, noting that the thread is doing so.
+     */
+    protected void notifyingProcessed (List<PostListener> listeners, Object result)
+    {
+        int[] notifying = _notifying.get();
+        notifying[0]++;
+        try {
+            notifyProcessed(listeners, result);
+        } finally {
+            notifying[0]--;
+        }
+    }
+
+    /**
+     * Notifies the given listeners of a call's failure, noting that the thread is doing so.
+     */
+    protected void notifyingFailed (List<PostListener> listeners, String cause)
+    {
+        int[] notifying = _notifying.get();
+        notifying[0]++;
+        try {
+            notifyFailed(listeners, cause);
+        } finally {
+            notifying[0]--;
+        }
+    }
+
+    /**
+     * Creates the headers sent with every request, which are shared by all posts.
+     */
+    protected static Map<String, String> requestHeaders (boolean deflated)
+    {
+        Map<String, String> headers = Maps.newHashMap();
+        headers.put("Content-Type", "application/x-www-form-urlencoded");
+        headers.put("Accept-Encoding", PostProtocol.DEFLATE);
+        if (deflated) {
+            headers.put("Content-Encoding", PostProtocol.DEFLATE);
+        }
+        return Collections.unmodifiableMap(headers);
+    }
+
+    // TODO: perhaps find a way to type this. Might need to add a Class<Foo> instance to the
+    // call structure for service methods so we can typecheck the result here. At least if a person
+    // sticks to generated code, the implicit casts should be safe.
+    @SuppressWarnings("unchecked")
+    protected static void notifyProcessed (List<PostListener> listeners, Object result)
+    {
+        for (PostListener listener : listeners) {
+            if (listener instanceof PostResultListener<?>) {
+                ((PostResultListener)listener).requestProcessed(result);
+            }
+        }
+    }
+
+    protected static void notifyFailed (List<PostListener> listeners, String cause)
+    {
+        for (PostListener listener : listeners) {
+            listener.requestFailed(cause);
+        }
+    }
+
+    /** A service call waiting in the queue to be sent. */
+    protected static class PendingCall
+    {
+        public final int serviceId;
+        public final int methodId;
+        public final Object[] args;
+        public final List<PostListener> listeners;
+        public final String authCode;
+        public final CallCodec codec;
+        public final Object orderingKey;
+        public final long queued = System.currentTimeMillis();
+
+        /** The results kept for the call's method, if its result is revalidated. */
+        public ResultCache results;
+
+        /** Identifies the call's result among those kept, if its result is revalidated. */
+        public ResultKey resultKey;
+
+        /** The kept result whose validator was sent with the call, if any. */
+        public CachedResult cached;
+
+        /** Whether the call may be sent more than once. */
+        public boolean idempotent;
+
+        /** The lane in which the call waits to be sent. */
+        public int lane;
+
+        /** Whether the post that last sent the call has made room for the next. */
+        public boolean released;
+
+        /** Whether the call is held in the queue until its caller's batch ends. */
+        public boolean held;
+
+        public PendingCall (int serviceId, int methodId, Object[] args,
+                            List<PostListener> listeners, String authCode, CallCodec codec,
+                            Object orderingKey)
+        {
+            this.serviceId = serviceId;
+            this.methodId = methodId;
+            this.args = args;
+            this.listeners = listeners;
+            this.authCode = authCode;
+            this.codec = codec;
+            this.orderingKey = orderingKey;
+        }
+
+        /**
+         * Returns a copy of this call to be sent again, so that the post that sent this one can
+         * still make room for the next when it finishes.
+         */
+        public PendingCall copy ()
+        {
+            PendingCall copy = new PendingCall(
+                serviceId, methodId, args, listeners, authCode, codec, orderingKey);
+            copy.results = results;
+            copy.resultKey = resultKey;
+            copy.cached = cached;
+            copy.idempotent = idempotent;
+            copy.lane = lane;
+            return copy;
+        }
+    }
+
+    /**
+     * Sends a second copy of a post if the first hasn't been answered when it runs, and decides
+     * which copy's answer, or failure, is delivered.
+     */
+    protected class Hedge extends TimerTask
+    {
+        public Hedge (List<PendingCall> calls, byte[] bytes, Map<String, String> headers,
+                      int timeout, Executor executor)
+        {
+            _calls = calls;
+            _bytes = bytes;
+            _headers = headers;
+            _timeout = timeout;
+            _executor = executor;
+        }
+
+        /**
+         * Called once a copy of the post has been handed to the transport, so that it can be
+         * cancelled if another copy is answered first.
+         */
+        public void started (PostTransport.Callback copy, PostTransport.Post post)
+        {
+            synchronized (this) {
+                if (!_finished) {
+                    _posts.put(copy, post);
+                    return;
+                }
+                if (copy == _winner) {
+                    return;
+                }
+            }
+            post.cancel();
+        }
+
+        /**
+         * Called when a copy of the post is answered. Returns true if the answer should be
+         * delivered, because it is the first, in which case the other copies are cancelled.
+         */
+        public boolean answered (PostTransport.Callback copy)
+        {
+            List<PostTransport.Post> losers;
+            synchronized (this) {
+                if (_finished) {
+                    return false;
+                }
+                _finished = true;
+                _winner = copy;
+                cancel();
+                _posts.remove(copy);
+                losers = Lists.newArrayList(_posts.values());
+                _posts.clear();
+            }
+            for (PostTransport.Post loser : losers) {
+                loser.cancel();
+            }
+            return true;
+        }
+
+        /**
+         * Called when a copy of the post fails. Returns true if the failure should be delivered,
+         * because no other copy remains that may yet be answered.
+         *
+         * @param timeout The milliseconds the copy waited for its answer, or 0 for no limit.
+         */
+        public synchronized boolean failed (PostTransport.Callback copy, IOException ioe,
+                                            int timeout)
+        {
+            _posts.remove(copy);
+            if (_finished || --_copies > 0) {
+                // kept in case the copy we're waiting on is never sent after all
+                _failure = ioe;
+                _failureTimeout = timeout;
+                return false;
+            }
+            _finished = true;
+            cancel();
+            return true;
+        }
+
+        @Override // from TimerTask
+        public void run ()
+        {
+            synchronized (this) {
+                if (_finished || !takeHedgeToken()) {
+                    return;
+                }
+                _copies++;
+            }
+            // the transport may block until the copy is answered, which mustn't hold up the timer
+            try {
+                _executor.execute(newCopy());
+            } catch (RejectedExecutionException ree) {
+                // the first copy carries on alone, and an exception here would kill the timer
+                log.info("Hedge refused by executor", "error", ree);
+                _hedgeTokens.addAndGet(HEDGE_TOKEN);
+                withdrawn();
+                return;
+            }
+            _hedgedPosts.incrementAndGet();
+        }
+
+        /**
+         * Creates the task that sends the second copy of the post.
+         */
+        protected Runnable newCopy ()
+        {
+            return new Runnable() {
+                public void run () {
+                    PostTransport.Callback copy = new PostTransport.Callback() {
+                        public void responseReceived (PostTransport.Response rsp) {
+                            if (answered(this)) {
+                                _hedgesWon.incrementAndGet();
+                                PostClient.this.responseReceived(_calls, rsp);
+                                // don't keep the next post, or any calls requeued by the answer,
+                                // waiting on the slow copy
+                                releaseCalls(_calls);
+                                maybeSendNextRequest();
+                            }
+                        }
+                        public void postFailed (IOException ioe) {
+                            if (failed(this, ioe, _timeout)) {
+                                PostClient.this.postFailed(_calls, ioe, _timeout);
+                            }
+                        }
+                    };
+                    started(copy, _transport.post(
+                        _serviceAddress, _bytes, _bytes.length, _headers, _timeout, copy));
+                }
+            };
+        }
+
+        /**
+         * Called when the second copy can't be sent after all. If the first has already failed,
+         * its failure is delivered.
+         */
+        protected void withdrawn ()
+        {
+            IOException failure;
+            int timeout;
+            synchronized (this) {
+                if (_finished || --_copies > 0) {
+                    return;
+                }
+                _finished = true;
+                failure = _failure;
+                timeout = _failureTimeout;
+            }
+            postFailed(_calls, failure, timeout);
+        }
+
+        protected final List<PendingCall> _calls;
+        protected final byte[] _bytes;
+        protected final Map<String, String> _headers;
+        protected final int _timeout;
+        protected final Executor _executor;
+        protected Map<PostTransport.Callback, PostTransport.Post> _posts = Maps.newHashMap();
+        protected PostTransport.Callback _winner;
+        protected IOException _failure;
+        protected int _failureTimeout;
+        protected int _copies = 1;
+        protected boolean _finished;
+    }
+
+    /** The calls held by a thread's batch. */
+    protected static class Batch
+    {
+        /** The number of calls to beginBatch not yet matched by a call to endBatch. */
+        public int depth;
+
+        /** The calls held in the queue until the batch ends. */
+        public List<PendingCall> calls = Lists.newArrayList();
+    }
+
+    /** Hands the calls of a post the outcome reported by the transport. */
+    protected class PostCallback
+        implements PostTransport.Callback
+    {
+        public PostCallback (List<PendingCall> calls, EncodingBuffer body, int timeout, Hedge hedge)
+        {
+            _calls = calls;
+            _body = body;
+            _timeout = timeout;
+            _hedge = hedge;
+        }
+
+        /**
+         * Called once the post has been handed to the transport. Returns true if it is still
+         * being answered, in which case room is made for the next post when it is.
+         */
+        public boolean started ()
+        {
+            return _state.getAndIncrement() == 0;
+        }
+
+        // from interface PostTransport.Callback
+        public void responseReceived (PostTransport.Response rsp)
+        {
+            recordLatency(System.nanoTime() - _start);
+            _requestBuffers.release(_body);
+            if (_hedge == null || _hedge.answered(this)) {
+                PostClient.this.responseReceived(_calls, rsp);
+            }
+            finished();
+        }
+
+        // from interface PostTransport.Callback
+        public void postFailed (IOException ioe)
+        {
+            _requestBuffers.release(_body);
+            if (_hedge == null || _hedge.failed(this, ioe, _timeout)) {
+                PostClient.this.postFailed(_calls, ioe, _timeout);
+            }
+            finished();
+        }
+
+        /**
+         * Makes room for the next post, unless the post finished before the transport returned
+         * it, in which case {@link #postCalls} does.
+         */
+        protected void finished ()
+        {
+            if (_state.getAndIncrement() == 1 && releaseCalls(_calls)) {
+                maybeSendNextRequest();
+            }
+        }
+
+        protected final List<PendingCall> _calls;
+        protected final EncodingBuffer _body;
+        protected final int _timeout;
+        protected final Hedge _hedge;
+        protected final long _start = System.nanoTime();
+
+        /** Counts which of the transport's return and the post's outcome have happened. */
+        protected AtomicInteger _state = new AtomicInteger();
+    }
+
+    /** Identifies the result of a call among the kept results of its method. */
+    protected static class ResultKey
+    {
+        public final String authCode;
+        public final byte[] args;
+
+        public ResultKey (String authCode, byte[] args)
+        {
+            this.authCode = authCode;
+            this.args = args;
+        }
+
+        @Override
+        public int hashCode ()
+        {
+            return 31 * Objects.hashCode(authCode) + Arrays.hashCode(args);
+        }
+
+        @Override
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof ResultKey)) {
+                return false;
+            }
+            ResultKey okey = (ResultKey)other;
+            return Objects.equal(authCode, okey.authCode) && Arrays.equals(args, okey.args);
+        }
+    }
+
+    /** A kept result, with the validator the server sent along with it. */
+    protected static class CachedResult
+    {
+        public final long validator;
+        public final Object result;
+
+        public CachedResult (long validator, Object result)
+        {
+            this.validator = validator;
+            this.result = result;
+        }
+    }
+
+    /** The kept results of a single method, which forgets the least recently used first. */
+    protected static class ResultCache extends LinkedHashMap<ResultKey, CachedResult>
+    {
+        public ResultCache (int maxEntries)
+        {
+            super(16, 0.75f, true);
+            _maxEntries = maxEntries;
+        }
+
+        @Override
+        protected boolean removeEldestEntry (Map.Entry<ResultKey, CachedResult> eldest)
+        {
+            return size() > _maxEntries;
+        }
+
+        protected final int _maxEntries;
+    }
+
+    /** Keeps the decoded result of a call whose result is revalidated. */
+    protected static class ResultKeeper
+        implements PostResultListener<Object>
+    {
+        public ResultKeeper (PendingCall call, long validator)
+        {
+            _call = call;
+            _validator = validator;
+        }
+
+        // from interface PostResultListener
+        public void requestProcessed (Object result)
+        {
+            synchronized (_call.results) {
+                _call.results.put(_call.resultKey, new CachedResult(_validator, result));
+            }
+        }
+
+        // from interface PostListener
+        public void requestFailed (String cause)
+        {
+            // errors are never kept
+        }
+
+        protected final PendingCall _call;
+        protected final long _validator;
+    }
+
+    protected String _serviceAddress;
+    protected ConcurrentMap<Class<? extends PostService>, PostService> _services =
+        new ConcurrentHashMap<Class<? extends PostService>, PostService>();
+    protected String _version = "";
+    protected int _versionToken;
+    protected boolean _useAuthCode;
+    protected volatile String _authCode = "";
+    protected final Object _queueLock = new Object();
+    protected List<LinkedList<PendingCall>> _lanes = Lists.newArrayList();
+    protected Map<Object, int[]> _laneKeys = Maps.newHashMap();
+    protected int _queued;
+    protected int _queueLimit;
+    protected OverflowPolicy _overflow = OverflowPolicy.REJECT;
+    protected LatencyHistogram _queueWaits = new LatencyHistogram();
+    protected AtomicLong _queueOverflows = new AtomicLong();
+    protected ConcurrentMap<Long, ResultCache> _resultCaches =
+        new ConcurrentHashMap<Long, ResultCache>();
+    protected int _inFlight;
+    protected int _maxInFlight = 1;
+    protected volatile Executor _executor;
+    protected volatile Executor _callbackExecutor;
+    protected Set<Object> _busyKeys = Sets.newHashSet();
+    protected ThreadLocal<List<Integer>> _callLanes = new ThreadLocal<List<Integer>>() {
+        @Override protected List<Integer> initialValue () {
+            return Lists.newArrayList();
+        }
+    };
+    protected ThreadLocal<List<Object>> _orderingKeys = new ThreadLocal<List<Object>>() {
+        @Override protected List<Object> initialValue () {
+            return Lists.newArrayList();
+        }
+    };
+    protected ThreadLocal<Batch> _batches = new ThreadLocal<Batch>() {
+        @Override protected Batch initialValue () {
+            return new Batch();
+        }
+    };
+
+    /** How deeply each thread is nested in notifying listeners. */
+    protected ThreadLocal<int[]> _notifying = new ThreadLocal<int[]>() {
+        @Override protected int[] initialValue () {
+            return new int[1];
+        }
+    };
+    protected volatile int _maxBatchSize = 1;
+    protected volatile int _compressionThreshold;
+    protected volatile int _requestTimeout;
+    protected volatile boolean _compact;
+    protected volatile boolean _typed;
+    protected volatile ClassDictionary _dictionary;
+    protected volatile double _hedgeBudget;
+    protected AtomicLong _hedgeTokens = new AtomicLong();
+    protected volatile long _hedgeDelay;
+    protected volatile int _hedgePercentile = 95;
+    protected volatile long _learnedHedgeDelay;
+    protected volatile LatencyHistogram _latencies = new LatencyHistogram();
+    protected Timer _hedgeTimer;
+    protected AtomicLong _hedgedPosts = new AtomicLong();
+    protected AtomicLong _hedgesWon = new AtomicLong();
+    protected volatile long _backoff;
+    protected volatile long _backoffUntil;
+    protected volatile PostTransport _transport = new HttpTransport();
+    protected DeflaterPool _deflaters = new DeflaterPool(Deflater.DEFAULT_COMPRESSION, 4);
+    protected EncodingBuffer.Pool _requestBuffers = new EncodingBuffer.Pool(
+        REQUEST_BUFFER_SIZE, MAX_RETAINED_REQUEST_BUFFER_SIZE, 4);
     protected PostListener _defaultListener;
     protected boolean _shutdown;
+
+    /** The interval, in milliseconds, for which we first back off an overloaded server. */
+    protected static final long INITIAL_BACKOFF = 100;
+
+    /** The longest interval, in milliseconds, for which we back off an overloaded server. */
+    protected static final long MAX_BACKOFF = 10 * 1000;
+
+    /** The number of lanes in which calls may be queued. */
+    protected static final int MAX_LANES = 8;
+
+    /** The hedge budget is kept in thousandths of a hedge, which is this many. */
+    protected static final long HEDGE_TOKEN = 1000;
+
+    /** The most hedge budget that may be saved up by a quiet client to spend in a burst. */
+    protected static final long MAX_HEDGE_TOKENS = 10 * HEDGE_TOKEN;
+
+    /** The number of posts answered between updates of the learned hedge delay. */
+    protected static final int HEDGE_DELAY_INTERVAL = 20;
+
+    /** The number of posts answered from which the hedge delay is learned. */
+    protected static final int HEDGE_DELAY_WINDOW = 1000;
+
+    /** The initial capacity of the buffers into which requests are encoded. */
+    protected static final int REQUEST_BUFFER_SIZE = 1024;
+
+    /** Request buffers that grow beyond this size are dropped rather than pooled. */
+    protected static final int MAX_RETAINED_REQUEST_BUFFER_SIZE = 64 * 1024;
+
+    /** The headers sent with every request. */
+    protected static final Map<String, String> REQUEST_HEADERS = requestHeaders(false);
+
+    /** The headers sent with compressed requests. */
+    protected static final Map<String, String> DEFLATED_REQUEST_HEADERS = requestHeaders(true);
 }
@@ -0,0 +1,118 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.riposte.client;
+
+import java.io.IOException;
+import java.util.Map;
+
+import com.google.common.collect.Maps;
+
+/**
+ * Carries a {@link PostClient}'s requests to the server. Installed with
+ * {@link PostClient#setTransport}, it lets the client be pointed at something other than a
+ * {@link java.net.HttpURLConnection}, such as a pooled or multiplexing HTTP library. The default
+ * is an {@link HttpTransport}.<br/><br/>
+ *
+ * Posts are started with a callback that is told of their outcome. A transport may finish a post
+ * on the calling thread before returning from {@link #post}, as a blocking one does, or later on
+ * a thread of its own, in which case the post can be abandoned with {@link Post#cancel} while it
+ * waits.
+ */
+public interface PostTransport
+{
+    /** The server's response to a post. */
+    public static class Response
+    {
+        /** The body of the response, exactly as it was sent. */
+        public final byte[] body;
+
+        public Response (byte[] body)
+        {
+            this.body = body;
+        }
+
+        /**
+         * Returns the value of the given response header, or null if it wasn't sent. Names are
+         * not case sensitive.
+         */
+        public String getHeader (String name)
+        {
+            return _headers.get(name.toLowerCase());
+        }
+
+        /**
+         * Records the value of a response header.
+         */
+        public Response putHeader (String name, String value)
+        {
+            _headers.put(name.toLowerCase(), value);
+            return this;
+        }
+
+        protected Map<String, String> _headers = Maps.newHashMap();
+    }
+
+    /** Told of the outcome of a post. Exactly one of its methods is called, once. */
+    public interface Callback
+    {
+        /**
+         * Called with the whole of the server's response.
+         */
+        public void responseReceived (Response rsp);
+
+        /**
+         * Called if the post fails or is cancelled.
+         *
+         * @param ioe A {@link java.net.SocketTimeoutException} if the response took longer than
+         *            the timeout.
+         */
+        public void postFailed (IOException ioe);
+    }
+
+    /** A post that has been started. */
+    public interface Post
+    {
+        /**
+         * Abandons the post if it hasn't finished, releasing its connection or stream. Its
+         * callback is still told that it failed, once the transport is done with its body, unless
+         * it has already been told of its outcome.
+         */
+        public void cancel ();
+    }
+
+    /**
+     * Starts posting the given body to the given address. Transports may be used from several
+     * threads at once.
+     *
+     * @param body A buffer holding the body in its first <code>length</code> bytes. The buffer is
+     *             reused once the callback has been told of the outcome, so it must not be kept
+     *             past then.
+     * @param headers The request headers to send, in addition to any the transport requires.
+     * @param timeout The milliseconds to wait for the response, or 0 to use the transport's
+     *                default.
+     * @param callback Told of the outcome, which fails when the server answers with an error
+     *                 status.
+     *
+     * @return the post, which may already have finished.
+     */
+    public Post post (String address, byte[] body, int length, Map<String, String> headers,
+                      int timeout, Callback callback);
+}
@@ -0,0 +1,86 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A bounded pool of fixed size byte arrays. Buffers are handed out with {@link #acquire} and
+ * should be given back with {@link #release} once they are no longer referenced. If the pool is
+ * empty a new buffer is allocated, and if it is full a released buffer is simply dropped.
+ */
+public class BufferPool
+{
+    /**
+     * Creates a pool of buffers.
+     *
+     * @param bufferSize The size of every buffer handed out by this pool.
+     * @param maxPooled The maximum number of idle buffers that will be retained.
+     */
+    public BufferPool (int bufferSize, int maxPooled)
+    {
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+    }
+
+    /**
+     * Returns the size of the buffers handed out by this pool.
+     */
+    public int getBufferSize ()
+    {
+        return _bufferSize;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating a new one if none are idle.
+     */
+    public byte[] acquire ()
+    {
+        byte[] buf = _buffers.poll();
+        if (buf == null) {
+            return new byte[_bufferSize];
+        }
+        _pooled.decrementAndGet();
+        return buf;
+    }
+
+    /**
+     * Returns a buffer to the pool. Buffers of the wrong size are ignored.
+     */
+    public void release (byte[] buf)
+    {
+        if (buf == null || buf.length != _bufferSize) {
+            return;
+        }
+        if (_pooled.incrementAndGet() > _maxPooled) {
+            _pooled.decrementAndGet();
+            return;
+        }
+        _buffers.offer(buf);
+    }
+
+    protected final int _bufferSize;
+    protected final int _maxPooled;
+    protected final AtomicInteger _pooled = new AtomicInteger();
+    protected final ConcurrentLinkedQueue<byte[]> _buffers = new ConcurrentLinkedQueue<byte[]>();
+}
@@ -0,0 +1,49 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.io.IOException;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+
+/**
+ * Encodes the args and decodes the result of a service's calls according to the declared types of
+ * its methods, writing primitives and strings raw instead of streaming an Object[] of boxed,
+ * tagged values. Implemented by marshallers generated with typed codecs, and used in place of
+ * object streaming when the client enables them with
+ * {@link com.threerings.riposte.client.PostClient#setTypedCodecs}.
+ */
+public interface CallCodec
+{
+    /**
+     * Writes the args of a call to the given method, listeners excluded.
+     */
+    public void encodeArgs (int methodId, Object[] args, ObjectOutputStream out)
+        throws IOException;
+
+    /**
+     * Reads the result of a call to the given method.
+     */
+    public Object decodeResult (int methodId, ObjectInputStream in)
+        throws IOException, ClassNotFoundException;
+}
@@ -0,0 +1,133 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UnsupportedEncodingException;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.google.common.collect.Lists;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+
+/**
+ * A table of the classes that a set of services may stream, agreed on by client and server ahead
+ * of time, so that the names of those classes needn't be sent in full. Each class is streamed
+ * under a short token derived from its position in the table; classes missing from the table are
+ * streamed by name as usual. Tables are generated by the genriposte task, and both sides check
+ * that they hold the same table by comparing {@link #getHash}es.
+ */
+public class ClassDictionary
+{
+    /**
+     * Loads a table written by the genriposte task from the given classpath resource: one class
+     * name per line, ignoring blank lines and lines starting with #.
+     */
+    public static ClassDictionary load (String resource)
+        throws IOException
+    {
+        InputStream in = ClassDictionary.class.getClassLoader().getResourceAsStream(resource);
+        if (in == null) {
+            throw new IOException("Class dictionary not found [resource=" + resource + "]");
+        }
+        List<String> names = Lists.newArrayList();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "UTF-8"));
+        try {
+            for (String line; (line = reader.readLine()) != null; ) {
+                line = line.trim();
+                if (line.length() > 0 && !line.startsWith("#")) {
+                    names.add(line);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return new ClassDictionary(names);
+    }
+
+    public ClassDictionary (List<String> classNames)
+    {
+        _names = Collections.unmodifiableList(Lists.newArrayList(classNames));
+        _tokens = new String[_names.size()];
+        CRC32 crc = new CRC32();
+        for (int ii = 0; ii < _tokens.length; ii++) {
+            // no class name starts with ~, so tokens can't be mistaken for unlisted classes
+            _tokens[ii] = "~" + Integer.toString(ii, 36);
+            try {
+                crc.update(_names.get(ii).getBytes("UTF-8"));
+            } catch (UnsupportedEncodingException uee) {
+                throw new RuntimeException(uee); // UTF-8 is always supported
+            }
+            crc.update('\n');
+        }
+        _hash = (int)crc.getValue();
+    }
+
+    /**
+     * Returns the names of the classes in this table, in order.
+     */
+    public List<String> getClassNames ()
+    {
+        return _names;
+    }
+
+    /**
+     * Returns a hash of this table's contents, which differs between tables that would assign
+     * different tokens.
+     */
+    public int getHash ()
+    {
+        return _hash;
+    }
+
+    /**
+     * Configures a stream to write the classes in this table by their tokens. This must be done
+     * before anything is written to it.
+     */
+    public void seed (ObjectOutputStream out)
+    {
+        for (int ii = 0; ii < _tokens.length; ii++) {
+            out.addTranslation(_names.get(ii), _tokens[ii]);
+        }
+    }
+
+    /**
+     * Configures a stream to read the tokens of classes in this table. This must be done before
+     * anything is read from it.
+     */
+    public void seed (ObjectInputStream in)
+    {
+        for (int ii = 0; ii < _tokens.length; ii++) {
+            in.addTranslation(_tokens[ii], _names.get(ii));
+        }
+    }
+
+    protected final List<String> _names;
+    protected final String[] _tokens;
+    protected final int _hash;
+}
@@ -0,0 +1,71 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Encodings used by generated {@link CallCodec}s for values that the stream's own methods don't
+ * handle well: strings and byte arrays, either of which may be null, and strings longer than
+ * {@link java.io.DataOutputStream#writeUTF} allows. Each is written as a {@link VarInt} of one
+ * more than its length in bytes, or zero for null, followed by its bytes.
+ */
+public class Codecs
+{
+    public static void writeString (OutputStream out, String value)
+        throws IOException
+    {
+        writeBytes(out, (value == null) ? null : value.getBytes("UTF-8"));
+    }
+
+    public static String readString (DataInputStream in)
+        throws IOException
+    {
+        byte[] bytes = readBytes(in);
+        return (bytes == null) ? null : new String(bytes, "UTF-8");
+    }
+
+    public static void writeBytes (OutputStream out, byte[] value)
+        throws IOException
+    {
+        if (value == null) {
+            VarInt.write(out, 0);
+        } else {
+            VarInt.write(out, value.length + 1);
+            out.write(value);
+        }
+    }
+
+    public static byte[] readBytes (DataInputStream in)
+        throws IOException
+    {
+        int length = VarInt.read(in) - 1;
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+}
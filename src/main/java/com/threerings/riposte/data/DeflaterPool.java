@@ -0,0 +1,82 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Compresses message bodies in the HTTP "deflate" (zlib) format using a bounded pool of
+ * {@link Deflater}s, which are expensive to create and hold native memory until ended.
+ */
+public class DeflaterPool
+{
+    /**
+     * @param level The compression level, from {@link Deflater#BEST_SPEED} to
+     *              {@link Deflater#BEST_COMPRESSION}.
+     * @param maxPooled The maximum number of idle deflaters that will be retained.
+     */
+    public DeflaterPool (int level, int maxPooled)
+    {
+        _level = level;
+        _maxPooled = maxPooled;
+    }
+
+    /**
+     * Appends the compressed form of the given bytes to the destination buffer.
+     */
+    public void deflate (byte[] src, int off, int len, EncodingBuffer dest)
+        throws IOException
+    {
+        Deflater deflater = _deflaters.poll();
+        if (deflater == null) {
+            deflater = new Deflater(_level);
+        } else {
+            _pooled.decrementAndGet();
+        }
+        try {
+            DeflaterOutputStream out = new DeflaterOutputStream(dest, deflater, CHUNK_SIZE);
+            out.write(src, off, len);
+            out.finish();
+        } finally {
+            deflater.reset();
+            if (_pooled.incrementAndGet() > _maxPooled) {
+                _pooled.decrementAndGet();
+                deflater.end();
+            } else {
+                _deflaters.offer(deflater);
+            }
+        }
+    }
+
+    protected final int _level;
+    protected final int _maxPooled;
+    protected final AtomicInteger _pooled = new AtomicInteger();
+    protected final ConcurrentLinkedQueue<Deflater> _deflaters =
+        new ConcurrentLinkedQueue<Deflater>();
+
+    /** The size of the chunks in which the deflater hands us its output. */
+    protected static final int CHUNK_SIZE = 1024;
+}
@@ -0,0 +1,196 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A growable, unsynchronized byte buffer into which Riposte messages are encoded so that they can
+ * be written out with a single call and a known length. Buffers are meant to be reused via a
+ * {@link Pool}.
+ */
+public class EncodingBuffer extends OutputStream
+{
+    /**
+     * A bounded pool of encoding buffers. Buffers that have grown beyond the pool's retain limit
+     * are dropped when released, so that one large message doesn't pin its memory indefinitely.
+     */
+    public static class Pool
+    {
+        /**
+         * Creates a buffer pool.
+         *
+         * @param initialSize The initial capacity of newly created buffers.
+         * @param maxRetainedSize Buffers whose capacity exceeds this are not returned to the pool.
+         * @param maxPooled The maximum number of idle buffers that will be retained.
+         */
+        public Pool (int initialSize, int maxRetainedSize, int maxPooled)
+        {
+            _initialSize = initialSize;
+            _maxRetainedSize = maxRetainedSize;
+            _maxPooled = maxPooled;
+        }
+
+        /**
+         * Takes an empty buffer from the pool, creating one if none are idle.
+         */
+        public EncodingBuffer acquire ()
+        {
+            EncodingBuffer buf = _buffers.poll();
+            if (buf == null) {
+                return new EncodingBuffer(_initialSize);
+            }
+            _pooled.decrementAndGet();
+            return buf;
+        }
+
+        /**
+         * Returns a buffer to the pool. The caller must not use the buffer after releasing it.
+         */
+        public void release (EncodingBuffer buf)
+        {
+            if (buf == null || buf.capacity() > _maxRetainedSize) {
+                return;
+            }
+            buf.reset();
+            if (_pooled.incrementAndGet() > _maxPooled) {
+                _pooled.decrementAndGet();
+                return;
+            }
+            _buffers.offer(buf);
+        }
+
+        protected final int _initialSize;
+        protected final int _maxRetainedSize;
+        protected final int _maxPooled;
+        protected final AtomicInteger _pooled = new AtomicInteger();
+        protected final ConcurrentLinkedQueue<EncodingBuffer> _buffers =
+            new ConcurrentLinkedQueue<EncodingBuffer>();
+    }
+
+    public EncodingBuffer (int initialSize)
+    {
+        _buf = new byte[Math.max(initialSize, 16)];
+    }
+
+    /**
+     * Returns the number of bytes written to this buffer.
+     */
+    public int size ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns the current capacity of this buffer.
+     */
+    public int capacity ()
+    {
+        return _buf.length;
+    }
+
+    /**
+     * Returns the backing array. Only the first {@link #size} bytes are valid, and the array is
+     * replaced if the buffer grows.
+     */
+    public byte[] getBuffer ()
+    {
+        return _buf;
+    }
+
+    /**
+     * Discards the contents of this buffer, retaining its capacity.
+     */
+    public void reset ()
+    {
+        _count = 0;
+    }
+
+    /**
+     * Discards everything after the first size bytes of this buffer.
+     */
+    public void truncate (int size)
+    {
+        _count = Math.min(Math.max(size, 0), _count);
+    }
+
+    /**
+     * Returns a copy of the contents of this buffer.
+     */
+    public byte[] toByteArray ()
+    {
+        byte[] bytes = new byte[_count];
+        System.arraycopy(_buf, 0, bytes, 0, _count);
+        return bytes;
+    }
+
+    /**
+     * Writes the contents of this buffer to the given stream in a single call.
+     */
+    public void writeTo (OutputStream out)
+        throws IOException
+    {
+        out.write(_buf, 0, _count);
+    }
+
+    /**
+     * Appends a big-endian int, as {@link java.io.DataOutputStream#writeInt} would.
+     */
+    public void writeInt (int value)
+    {
+        ensureCapacity(_count + 4);
+        _buf[_count++] = (byte)(value >>> 24);
+        _buf[_count++] = (byte)(value >>> 16);
+        _buf[_count++] = (byte)(value >>> 8);
+        _buf[_count++] = (byte)value;
+    }
+
+    @Override // from OutputStream
+    public void write (int b)
+    {
+        ensureCapacity(_count + 1);
+        _buf[_count++] = (byte)b;
+    }
+
+    @Override // from OutputStream
+    public void write (byte[] b, int off, int len)
+    {
+        ensureCapacity(_count + len);
+        System.arraycopy(b, off, _buf, _count, len);
+        _count += len;
+    }
+
+    protected void ensureCapacity (int capacity)
+    {
+        if (capacity > _buf.length) {
+            byte[] nbuf = new byte[Math.max(capacity, _buf.length * 2)];
+            System.arraycopy(_buf, 0, nbuf, 0, _count);
+            _buf = nbuf;
+        }
+    }
+
+    protected byte[] _buf;
+    protected int _count;
+}
@@ -0,0 +1,129 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of durations in nanoseconds. Each power of two is split into eight
+ * buckets, so reported percentiles are within about 12% of the true value.
+ */
+public class LatencyHistogram
+{
+    /**
+     * Records a single duration.
+     */
+    public void record (long nanos)
+    {
+        nanos = Math.max(nanos, 0);
+        _counts.incrementAndGet(bucketFor(nanos));
+        _count.incrementAndGet();
+        _total.addAndGet(nanos);
+        long max;
+        while (nanos > (max = _max.get()) && !_max.compareAndSet(max, nanos)) {
+            // someone else updated the max first; try again
+        }
+    }
+
+    /**
+     * Returns the number of durations recorded.
+     */
+    public long getCount ()
+    {
+        return _count.get();
+    }
+
+    /**
+     * Returns the mean of the recorded durations, in nanoseconds.
+     */
+    public long getMean ()
+    {
+        long count = _count.get();
+        return (count == 0) ? 0 : _total.get() / count;
+    }
+
+    /**
+     * Returns the longest recorded duration, in nanoseconds.
+     */
+    public long getMax ()
+    {
+        return _max.get();
+    }
+
+    /**
+     * Returns the duration, in nanoseconds, below which the given fraction of the recorded
+     * durations fall.
+     *
+     * @param fraction A value between 0 and 1, e.g. 0.99 for the 99th percentile.
+     */
+    public long getPercentile (double fraction)
+    {
+        long total = 0;
+        long[] counts = new long[BUCKETS];
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            counts[ii] = _counts.get(ii);
+            total += counts[ii];
+        }
+        if (total == 0) {
+            return 0;
+        }
+        long target = (long)Math.ceil(total * Math.min(Math.max(fraction, 0), 1));
+        long seen = 0;
+        for (int ii = 0; ii < BUCKETS; ii++) {
+            seen += counts[ii];
+            if (seen >= Math.max(target, 1)) {
+                return Math.min(upperBound(ii), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    protected static int bucketFor (long value)
+    {
+        if (value < SUB_BUCKETS) {
+            return (int)value;
+        }
+        int msb = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int)(value >>> (msb - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return ((msb - SUB_BITS + 1) << SUB_BITS) | sub;
+    }
+
+    protected static long upperBound (int bucket)
+    {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long lower = ((long)(SUB_BUCKETS | (bucket & (SUB_BUCKETS - 1)))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    protected final AtomicLongArray _counts = new AtomicLongArray(BUCKETS);
+    protected final AtomicLong _count = new AtomicLong();
+    protected final AtomicLong _total = new AtomicLong();
+    protected final AtomicLong _max = new AtomicLong();
+
+    protected static final int SUB_BITS = 3;
+    protected static final int SUB_BUCKETS = 1 << SUB_BITS;
+    protected static final int BUCKETS = (64 - SUB_BITS) << SUB_BITS;
+}
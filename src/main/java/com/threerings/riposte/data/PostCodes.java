@@ -36,4 +36,37 @@ public class PostCodes
 
     /** This code is dispatched when the auth check method returns false for a given call. */
     public static final String AUTH_CHECK_FAILED = "e.auth_check_failed";
+
+    /** This code is dispatched when a request body is larger than the server will accept. */
+    public static final String REQUEST_TOO_LARGE = "e.request_too_large";
+
+    /**
+     * This code is dispatched when the server is too busy to accept a call. Clients should back
+     * off before sending further calls.
+     */
+    public static final String OVERLOADED = "e.overloaded";
+
+    /**
+     * This code is dispatched when a call could not be started before the timeout sent by the
+     * client had passed.
+     */
+    public static final String DEADLINE_EXCEEDED = "e.deadline_exceeded";
+
+    /**
+     * This code is dispatched when the caller has exceeded the rate of calls allowed for its auth
+     * code. The client should back off before retrying.
+     */
+    public static final String RATE_LIMITED = "e.rate_limited";
+
+    /**
+     * This code is dispatched when a request was streamed with a class dictionary that the server
+     * doesn't share. The client should resend it without one.
+     */
+    public static final String DICTIONARY_MISMATCH = "e.dictionary_mismatch";
+
+    /**
+     * This code is dispatched by the client when a call is refused, or dropped, because its queue
+     * of calls waiting to be sent is full.
+     */
+    public static final String QUEUE_FULL = "e.queue_full";
 }
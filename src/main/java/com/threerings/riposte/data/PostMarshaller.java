@@ -41,11 +41,25 @@ public abstract class PostMarshaller
     /**
      * Posts an RPC request to the server with the given args.  If there are any PostListener
      * args, they are not sent along to the server; instead, they're registered on the client to
-     * receive callbacks with the RPC call finishes.
+     * receive callbacks with the RPC call finishes.  Marshallers generated with typed codecs
+     * implement {@link CallCodec}, and the client may use them to encode the call.
      */
     protected void sendRequest (int methodId, Object[] args)
     {
-        _client.sendRequest(getServiceId(), methodId, args);
+        sendRequest(methodId, args, 0, false);
+    }
+
+    /**
+     * Posts an RPC request as {@link #sendRequest(int, Object[])} does, having the client keep up
+     * to the given number of results of the method and revalidate them with the server, as
+     * described by {@link RevalidateResult}, and letting it send the call more than once if the
+     * method is {@link Idempotent}.
+     */
+    protected void sendRequest (int methodId, Object[] args, int revalidatedResults,
+                                boolean idempotent)
+    {
+        _client.sendRequest(getServiceId(), methodId, args,
+            (this instanceof CallCodec) ? (CallCodec)this : null, revalidatedResults, idempotent);
     }
 
     /**
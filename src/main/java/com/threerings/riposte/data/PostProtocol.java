@@ -0,0 +1,165 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.data;
+
+import java.io.UnsupportedEncodingException;
+import java.util.zip.CRC32;
+
+/**
+ * Constants describing the parts of the Riposte wire protocol shared by the client and server.
+ *
+ * <p>There are two request formats. The original starts with the client version string and,
+ * when the server uses auth codes, the auth code, then gives each id as a four byte int, with
+ * negative markers in place of a service id to introduce optional fields. The compact format
+ * starts with {@link #MAGIC}, {@link #COMPACT_VERSION}, a byte of FLAG bits and the
+ * {@link #versionToken} of the client version as an int, then the {@link ClassDictionary} hash
+ * as an int if {@link #FLAG_DICTIONARY} is set. Then follow the auth code if
+ * {@link #FLAG_AUTH} is set, the timeout if {@link #FLAG_TIMEOUT} is set, the number of calls if
+ * {@link #FLAG_BATCH} is set, and the calls, with all ids and counts written as {@link VarInt}s.
+ * The server tells the two apart by the first byte, since a version string long enough for its
+ * length to start with {@link #MAGIC} is never sent.
+ *
+ * <p>Responses to compact requests start with {@link #MAGIC} and a byte of flags. If
+ * {@link #FLAG_BATCH} is set, the number of results follows, then each result preceded by its
+ * length, both as {@link VarInt}s, in place of the {@link #BATCH_HEADER}. A response to a compact
+ * request that doesn't start with {@link #MAGIC} holds a single error from a server that refused
+ * the request before reading it.
+ */
+public class PostProtocol
+{
+    /** The first byte of compact requests and responses. */
+    public static final int MAGIC = 0xA7;
+
+    /** The version of the compact format, which follows {@link #MAGIC}. */
+    public static final int COMPACT_VERSION = 2;
+
+    /** Set in a compact request that carries an auth code. */
+    public static final int FLAG_AUTH = 0x01;
+
+    /** Set in a compact request or response that carries a batch of calls or results. */
+    public static final int FLAG_BATCH = 0x02;
+
+    /** Set in a compact request that carries a timeout, as for {@link #TIMEOUT}. */
+    public static final int FLAG_TIMEOUT = 0x04;
+
+    /**
+     * Set in a compact request whose args are written by {@link CallCodec}s, and in the response
+     * to it, whose results are written the same way. Each such result starts with
+     * {@link #TYPED_RESULT}, followed by the result as the codec writes it, or
+     * {@link #TYPED_ERROR}, followed by a streamed {@link StreamableError}.
+     */
+    public static final int FLAG_TYPED = 0x08;
+
+    /**
+     * Set in a compact request streamed with a {@link ClassDictionary}, in which case the hash of
+     * the dictionary follows the version token. Results are then streamed with the dictionary
+     * too. Set in a response, it means that the server doesn't share the dictionary, and the
+     * response holds a {@link PostCodes#DICTIONARY_MISMATCH} error.
+     */
+    public static final int FLAG_DICTIONARY = 0x10;
+
+    /**
+     * Set in a compact request whose calls each start, after the method id, with
+     * {@link #VALIDATOR_NONE}, {@link #VALIDATOR_WANTED} or {@link #VALIDATOR_SENT}, in which last
+     * case the validator of the client's cached result follows as a long. Set in the response to
+     * such a request, each result of a call that wanted a validator starts with
+     * {@link #RESULT_NOT_MODIFIED}, if the result's validator matches the one sent, or else with
+     * {@link #RESULT_MODIFIED} and the result's validator, followed by the result.
+     */
+    public static final int FLAG_VALIDATORS = 0x20;
+
+    /** Starts a call whose result the client doesn't cache. */
+    public static final int VALIDATOR_NONE = 0;
+
+    /** Starts a call whose result the client would cache, but has no cached result for yet. */
+    public static final int VALIDATOR_WANTED = 1;
+
+    /** Starts a call whose result the client has cached, followed by the result's validator. */
+    public static final int VALIDATOR_SENT = 2;
+
+    /** Starts a result that differs from the client's cached one, followed by its validator. */
+    public static final int RESULT_MODIFIED = 0;
+
+    /** Sent in place of a result that matches the client's cached one. */
+    public static final int RESULT_NOT_MODIFIED = 1;
+
+    /** Starts a result written by a {@link CallCodec}. */
+    public static final int TYPED_RESULT = 0;
+
+    /** Starts an error in place of a result written by a {@link CallCodec}. */
+    public static final int TYPED_ERROR = 1;
+
+    /**
+     * Sent in place of a service id to introduce a batch of calls. It is followed by the number of
+     * calls in the batch, then the service id, method id and args of each call in turn.
+     */
+    public static final int BATCH = -1;
+
+    /**
+     * Sent in place of a service id to give the number of milliseconds for which the client will
+     * wait for a response, as an int. It is followed by the service id or {@link #BATCH} marker.
+     * The server abandons calls that it cannot start before the time has passed.
+     */
+    public static final int TIMEOUT = -2;
+
+    /**
+     * The HTTP header with which the server marks a batch response, giving the number of results
+     * it contains. Each result is encoded on its own object stream, preceded by its length as an
+     * int. A response to a batch request that lacks this header holds a single error that failed
+     * every call in the batch.
+     */
+    public static final String BATCH_HEADER = "X-Riposte-Batch";
+
+    /**
+     * A request header asking the server to report how long it took to handle the request, in the
+     * {@link #HANDLING_TIME_HEADER} of its response. Used when replaying captured traffic, so that
+     * replayed requests can be compared with the handling times recorded when they were captured.
+     */
+    public static final String TIMING_HEADER = "X-Riposte-Timing";
+
+    /**
+     * A response header giving the nanoseconds the server took to decode, invoke and encode the
+     * request, sent if the request had a {@link #TIMING_HEADER}.
+     */
+    public static final String HANDLING_TIME_HEADER = "X-Riposte-Handling-Nanos";
+
+    /**
+     * The content encoding used for compressed requests and responses. The server only compresses
+     * a response if the client lists this encoding in its Accept-Encoding header, and accepts a
+     * compressed request when it is named in the request's Content-Encoding header.
+     */
+    public static final String DEFLATE = "deflate";
+
+    /**
+     * Returns the token that stands in for the given client version string in compact requests.
+     */
+    public static int versionToken (String version)
+    {
+        CRC32 crc = new CRC32();
+        try {
+            crc.update(version.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException uee) {
+            throw new RuntimeException(uee); // UTF-8 is always supported
+        }
+        return (int)crc.getValue();
+    }
+}
@@ -0,0 +1,42 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.riposte.data;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a service interface method as idempotent and read-only, so that clients may keep the
+ * latest result of each distinct call and send its validator along when making the call again. If
+ * the new result is the same, the server answers with a single byte in its place and the
+ * client hands its listener the result it kept. The genriposte task records the annotation in the
+ * generated marshaller. Only clients using the compact protocol revalidate results. A kept result
+ * may be handed to many listeners, which must treat it as read-only.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface RevalidateResult
+{
+    /** The maximum number of distinct calls whose results a client keeps. */
+    int maxEntries () default 100;
+}
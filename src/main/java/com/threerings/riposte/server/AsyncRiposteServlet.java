@@ -0,0 +1,227 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.google.inject.Inject;
+import com.google.inject.Singleton;
+import com.google.inject.name.Named;
+
+import com.threerings.riposte.data.PostCodes;
+
+import static com.threerings.riposte.Log.log;
+
+/**
+ * A {@link RiposteServlet} that uses Servlet 3.0 asynchronous processing to run service calls on
+ * its own bounded executor rather than on the container's request thread, so that slow service
+ * methods don't pin the container's connector threads. The servlet must be registered with async
+ * support enabled; if it isn't, calls are processed synchronously as usual.<br/><br/>
+ *
+ * When the executor refuses a call because its queue is full, the call fails with
+ * {@link PostCodes#OVERLOADED}, which makes clients back off, and is counted in
+ * {@link #getRejectedCount}. The servlet owns its executor and shuts it down when it is destroyed,
+ * so that redeploying the webapp doesn't leave its threads behind.<br/><br/>
+ *
+ * On a JVM with virtual threads, binding {@link #DISPATCH_EXECUTOR} to
+ * {@link #newVirtualThreadExecutor} runs every call on its own virtual thread, which lets a
+ * server hold a great many calls that are blocked on I/O. Service code that blocks while holding
+ * a monitor pins its carrier thread; {@link #setPinnedThreadThreshold} logs where that happens.
+ */
+@Singleton
+public class AsyncRiposteServlet extends RiposteServlet
+{
+    /** The name used in the @Named annotation for the constructor's injected executor. */
+    public static final String DISPATCH_EXECUTOR = "RiposteDispatchExecutor";
+
+    /**
+     * Creates a bounded executor suitable for dispatching service calls: a fixed number of
+     * threads fed by a fixed size queue, which rejects calls once the queue is full.
+     *
+     * @param threads The number of threads that will run service calls.
+     * @param queueSize The number of calls that may wait for a thread before calls are rejected.
+     */
+    public static ThreadPoolExecutor newDispatchExecutor (int threads, int queueSize)
+    {
+        return new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(queueSize), new ThreadFactory() {
+                public Thread newThread (Runnable task) {
+                    Thread thread = new Thread(
+                        task, "riposte-dispatch-" + _count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+                protected AtomicInteger _count = new AtomicInteger();
+            });
+    }
+
+    /**
+     * Creates an executor that runs each service call on a new virtual thread. On a JVM without
+     * virtual threads, a bounded executor of the given size is created instead.
+     *
+     * @param fallbackThreads The number of threads in the fallback executor.
+     * @param fallbackQueueSize The size of the fallback executor's queue.
+     */
+    public static ExecutorService newVirtualThreadExecutor (
+        int fallbackThreads, int fallbackQueueSize)
+    {
+        // the factory only exists from Java 21, so look it up by name and fall back if it's absent
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService)factory.invoke(null);
+        } catch (Exception e) {
+            log.warning("Virtual threads are not available, dispatching on a bounded executor",
+                "threads", fallbackThreads, "queueSize", fallbackQueueSize, "error", e);
+            return newDispatchExecutor(fallbackThreads, fallbackQueueSize);
+        }
+    }
+
+    /**
+     * @param executor The executor on which service calls will be run, which is shut down when
+     *                 the servlet is destroyed. Its queue depth is only reported by
+     *                 {@link #getQueueDepth} if it is a {@link ThreadPoolExecutor}.
+     */
+    @Inject public AsyncRiposteServlet (
+        PostManager manager, @Named(DISPATCH_EXECUTOR) ExecutorService executor)
+    {
+        super(manager);
+        _executor = executor;
+    }
+
+    /**
+     * Sets the number of milliseconds after which the container may abandon an asynchronous call.
+     * Zero, the default, leaves calls to run for as long as their service method takes.
+     */
+    public void setAsyncTimeout (long timeout)
+    {
+        _asyncTimeout = timeout;
+    }
+
+    /**
+     * Logs every time a virtual thread is pinned to its carrier for at least the given number of
+     * milliseconds, with the stack at which it happened, until the servlet is destroyed. Zero, the
+     * default, logs nothing. See {@link PinnedThreadMonitor}.
+     */
+    public void setPinnedThreadThreshold (long thresholdMillis)
+    {
+        if (_pinnedMonitor != null) {
+            _pinnedMonitor.stop();
+        }
+        _pinnedMonitor = (thresholdMillis > 0) ? PinnedThreadMonitor.start(thresholdMillis) : null;
+    }
+
+    /**
+     * Returns the number of times a virtual thread has been pinned beyond the threshold given to
+     * {@link #setPinnedThreadThreshold}.
+     */
+    public long getPinnedCount ()
+    {
+        return (_pinnedMonitor == null) ? 0 : _pinnedMonitor.getPinnedCount();
+    }
+
+    /**
+     * Returns the number of calls waiting for a dispatch thread.
+     */
+    public int getQueueDepth ()
+    {
+        return (_executor instanceof ThreadPoolExecutor) ?
+            ((ThreadPoolExecutor)_executor).getQueue().size() : 0;
+    }
+
+    /**
+     * Returns the number of calls that have been turned away because the executor was full.
+     */
+    public long getRejectedCount ()
+    {
+        return _rejected.get();
+    }
+
+    @Override protected void doPost (HttpServletRequest req, HttpServletResponse resp)
+        throws ServletException, IOException
+    {
+        if (!req.isAsyncSupported()) {
+            super.doPost(req, resp);
+            return;
+        }
+
+        final AsyncContext ctx = req.startAsync();
+        ctx.setTimeout(_asyncTimeout);
+        try {
+            _executor.execute(new Runnable() {
+                public void run () {
+                    try {
+                        _manager.doServiceCall((HttpServletRequest)ctx.getRequest(),
+                            (HttpServletResponse)ctx.getResponse());
+                    } catch (Throwable t) {
+                        log.warning("Asynchronous service call failed", t);
+                    } finally {
+                        ctx.complete();
+                    }
+                }
+            });
+
+        } catch (RejectedExecutionException ree) {
+            long rejected = _rejected.incrementAndGet();
+            if (rejected % REJECTION_LOG_INTERVAL == 1) {
+                log.warning("Dispatch executor is full, rejecting service calls",
+                    "queued", getQueueDepth(), "rejected", rejected);
+            }
+            try {
+                _manager.refuseServiceCall(resp, PostCodes.OVERLOADED);
+            } finally {
+                ctx.complete();
+            }
+        }
+    }
+
+    @Override public void destroy ()
+    {
+        super.destroy();
+        _executor.shutdown();
+        if (_pinnedMonitor != null) {
+            _pinnedMonitor.stop();
+        }
+    }
+
+    protected ExecutorService _executor;
+    protected long _asyncTimeout;
+    protected AtomicLong _rejected = new AtomicLong();
+    protected PinnedThreadMonitor _pinnedMonitor;
+
+    /** We log every this many rejected calls, so that a flood of them doesn't flood the log. */
+    protected static final int REJECTION_LOG_INTERVAL = 100;
+}
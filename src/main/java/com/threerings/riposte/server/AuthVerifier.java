@@ -0,0 +1,39 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+/**
+ * Decides whether an auth code may be used to call a service. Installed on a {@link PostManager}
+ * with {@link PostManager#setAuthVerifier}, it is consulted by the default implementation of
+ * {@link PostManager#checkAuth}. Wrap it in a {@link CachingAuthVerifier} when verification is
+ * expensive, such as when it requires a trip to a session store.
+ */
+public interface AuthVerifier
+{
+    /**
+     * Returns true if calls to the given service may be made with the given auth code. A verifier
+     * that cannot reach a decision, for instance because its session store is unavailable, should
+     * throw rather than return false, so that the failure is neither cached nor mistaken for a
+     * bad auth code.
+     */
+    boolean isValid (String authCode, int serviceId);
+}
@@ -0,0 +1,50 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a service interface method as idempotent and read-only, so that {@link PostManager} may
+ * answer identical calls made within the time to live with the already encoded result of an
+ * earlier call, without invoking the method again. The genriposte task records the annotation in
+ * the generated dispatcher's {@link MethodPolicy}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CacheResult
+{
+    /** The number of milliseconds for which a result may be reused. */
+    long ttl ();
+
+    /** The maximum number of distinct calls whose results are retained. */
+    int maxEntries () default 1000;
+
+    /**
+     * If true, the result of a call may be reused for calls made with any auth code. By default
+     * results are only reused for calls made with the same auth code.
+     */
+    boolean shareAcrossAuth () default false;
+}
@@ -0,0 +1,252 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Objects;
+
+/**
+ * Remembers the decisions of another {@link AuthVerifier} in a bounded, least recently used
+ * cache, so that most calls need not consult it. Valid and invalid auth codes are remembered for
+ * separate intervals; invalid codes are usually kept for less time, so that a session that has
+ * just been created is soon recognized. When a session ends, call {@link #invalidate} so that its
+ * auth code is not accepted for the rest of its interval.<br/><br/>
+ *
+ * Decisions are spread by auth code across a fixed number of independently locked stripes, so
+ * that checks of different codes rarely contend. Each stripe counts its invalidations, and a
+ * decision that the delegate made while its stripe was invalidated is returned but not
+ * remembered, as it may predate the invalidation.
+ */
+public class CachingAuthVerifier
+    implements AuthVerifier
+{
+    /**
+     * @param delegate The verifier whose decisions are cached.
+     * @param validTtl The milliseconds for which an auth code found valid is remembered.
+     * @param invalidTtl The milliseconds for which an auth code found invalid is remembered, or 0
+     * to always consult the delegate about invalid codes.
+     * @param maxEntries The number of decisions to remember.
+     * @param perService If true, decisions are remembered separately for each service, for a
+     * delegate whose decision depends on the service being called.
+     */
+    public CachingAuthVerifier (AuthVerifier delegate, long validTtl, long invalidTtl,
+                                int maxEntries, boolean perService)
+    {
+        this(delegate, validTtl, invalidTtl, maxEntries, perService, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param stripes The number of independently locked sections into which decisions are
+     * divided, rounded up to a power of two.
+     */
+    public CachingAuthVerifier (AuthVerifier delegate, long validTtl, long invalidTtl,
+                                int maxEntries, boolean perService, int stripes)
+    {
+        _delegate = delegate;
+        _validTtl = validTtl;
+        _invalidTtl = invalidTtl;
+        _perService = perService;
+
+        int count = 1;
+        while (count < stripes) {
+            count <<= 1;
+        }
+        _stripes = new Stripe[count];
+        int perStripe = Math.max(1, maxEntries / count);
+        for (int ii = 0; ii < count; ii++) {
+            _stripes[ii] = new Stripe(perStripe);
+        }
+    }
+
+    // from interface AuthVerifier
+    public boolean isValid (String authCode, int serviceId)
+    {
+        Key key = new Key(authCode, _perService ? serviceId : ANY_SERVICE);
+        Stripe stripe = getStripe(authCode);
+        long generation;
+        synchronized (stripe) {
+            Entry entry = stripe.get(key);
+            if (entry != null) {
+                if (entry.expires >= System.currentTimeMillis()) {
+                    _hits.incrementAndGet();
+                    return entry.valid;
+                }
+                stripe.remove(key);
+            }
+            generation = stripe.generation;
+        }
+
+        // consult the delegate without holding the lock, as it may be slow
+        _misses.incrementAndGet();
+        boolean valid = _delegate.isValid(authCode, serviceId);
+        long ttl = valid ? _validTtl : _invalidTtl;
+        if (ttl > 0) {
+            synchronized (stripe) {
+                // an invalidation that arrived while we waited may have revoked what we were told
+                if (stripe.generation == generation) {
+                    stripe.put(key, new Entry(valid, System.currentTimeMillis() + ttl));
+                }
+            }
+        }
+        return valid;
+    }
+
+    /**
+     * Forgets any decisions about the given auth code, so that the next call made with it
+     * consults the delegate.
+     */
+    public void invalidate (String authCode)
+    {
+        Stripe stripe = getStripe(authCode);
+        synchronized (stripe) {
+            stripe.generation++;
+            if (!_perService) {
+                stripe.remove(new Key(authCode, ANY_SERVICE));
+                return;
+            }
+            for (Iterator<Key> it = stripe.keySet().iterator(); it.hasNext(); ) {
+                if (Objects.equal(authCode, it.next().authCode)) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    /**
+     * Forgets every decision.
+     */
+    public void invalidateAll ()
+    {
+        for (Stripe stripe : _stripes) {
+            synchronized (stripe) {
+                stripe.generation++;
+                stripe.clear();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of checks answered from the cache.
+     */
+    public long getHits ()
+    {
+        return _hits.get();
+    }
+
+    /**
+     * Returns the number of checks that consulted the delegate.
+     */
+    public long getMisses ()
+    {
+        return _misses.get();
+    }
+
+    /**
+     * Returns the stripe holding the decisions about the given auth code, for every service.
+     */
+    protected Stripe getStripe (String authCode)
+    {
+        int hash = (authCode == null) ? 0 : authCode.hashCode();
+        // spread the hash so that codes differing only in their high bits land in different stripes
+        hash ^= (hash >>> 16);
+        return _stripes[hash & (_stripes.length - 1)];
+    }
+
+    protected static class Key
+    {
+        public final String authCode;
+        public final int serviceId;
+
+        public Key (String authCode, int serviceId)
+        {
+            this.authCode = authCode;
+            this.serviceId = serviceId;
+        }
+
+        @Override // documentation inherited
+        public int hashCode ()
+        {
+            return 31 * (authCode == null ? 0 : authCode.hashCode()) + serviceId;
+        }
+
+        @Override // documentation inherited
+        public boolean equals (Object other)
+        {
+            if (!(other instanceof Key)) {
+                return false;
+            }
+            Key okey = (Key)other;
+            return serviceId == okey.serviceId && Objects.equal(authCode, okey.authCode);
+        }
+    }
+
+    protected static class Entry
+    {
+        public final boolean valid;
+        public final long expires;
+
+        public Entry (boolean valid, long expires)
+        {
+            this.valid = valid;
+            this.expires = expires;
+        }
+    }
+
+    /** A bounded, access ordered section of the cache, accessed while holding its lock. */
+    protected static class Stripe extends LinkedHashMap<Key, Entry>
+    {
+        /** The number of times this stripe has been invalidated. */
+        public long generation;
+
+        public Stripe (int maxEntries)
+        {
+            super(16, 0.75f, true);
+            _maxEntries = maxEntries;
+        }
+
+        @Override // documentation inherited
+        protected boolean removeEldestEntry (Map.Entry<Key, Entry> eldest)
+        {
+            return size() > _maxEntries;
+        }
+
+        protected final int _maxEntries;
+    }
+
+    protected final AuthVerifier _delegate;
+    protected final long _validTtl;
+    protected final long _invalidTtl;
+    protected final boolean _perService;
+    protected final Stripe[] _stripes;
+    protected final AtomicLong _hits = new AtomicLong();
+    protected final AtomicLong _misses = new AtomicLong();
+
+    /** The service id under which decisions are remembered when they apply to every service. */
+    protected static final int ANY_SERVICE = -1;
+
+    /** The default number of stripes into which decisions are divided. */
+    protected static final int DEFAULT_STRIPES = 16;
+}
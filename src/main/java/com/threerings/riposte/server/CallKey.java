@@ -0,0 +1,82 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.util.Arrays;
+
+import com.google.common.base.Objects;
+
+/**
+ * Identifies a service call by its service id, method id, encoded args and, optionally, the auth
+ * code with which it was made, so that identical calls can be recognized.
+ */
+public class CallKey
+{
+    /**
+     * Combines a service id and method id into a single value suitable for keying per-method
+     * tables.
+     */
+    public static Long methodKey (int serviceId, int methodId)
+    {
+        return ((long)serviceId << 32) | (methodId & 0xFFFFFFFFL);
+    }
+
+    public final int serviceId;
+    public final int methodId;
+    public final String authCode;
+    public final byte[] args;
+
+    /**
+     * @param authCode The auth code of the call, or null if calls with different auth codes
+     *                 should be considered identical.
+     * @param args The canonical encoding of the call's arguments.
+     */
+    public CallKey (int serviceId, int methodId, String authCode, byte[] args)
+    {
+        this.serviceId = serviceId;
+        this.methodId = methodId;
+        this.authCode = authCode;
+        this.args = args;
+        _hashCode = 31 * (31 * (31 * serviceId + methodId) + Objects.hashCode(authCode)) +
+            Arrays.hashCode(args);
+    }
+
+    @Override
+    public int hashCode ()
+    {
+        return _hashCode;
+    }
+
+    @Override
+    public boolean equals (Object other)
+    {
+        if (!(other instanceof CallKey)) {
+            return false;
+        }
+        CallKey okey = (CallKey)other;
+        return _hashCode == okey._hashCode && serviceId == okey.serviceId &&
+            methodId == okey.methodId && Objects.equal(authCode, okey.authCode) &&
+            Arrays.equals(args, okey.args);
+    }
+
+    protected final int _hashCode;
+}
@@ -0,0 +1,45 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a service interface method whose identical concurrent calls may share one invocation.
+ * While a call is in progress, {@link PostManager} holds any calls with the same arguments until
+ * it finishes and answers them all with its encoded result, or its error. This protects backing
+ * stores from a thundering herd when many clients ask for the same thing at once. The genriposte
+ * task records the annotation in the generated dispatcher's {@link MethodPolicy}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface CoalesceCalls
+{
+    /**
+     * If true, calls made with different auth codes may share an invocation. By default only
+     * calls made with the same auth code are coalesced.
+     */
+    boolean shareAcrossAuth () default false;
+}
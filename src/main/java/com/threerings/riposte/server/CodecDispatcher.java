@@ -0,0 +1,47 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.io.IOException;
+
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+
+/**
+ * A dispatcher that can also read the args and write the results of its service's calls in the
+ * typed encoding of a {@link com.threerings.riposte.data.CallCodec}. Dispatchers generated with
+ * typed codecs implement it.
+ */
+public interface CodecDispatcher extends PolicyDispatcher
+{
+    /**
+     * Reads the args of a call to the given method.
+     */
+    public Object[] decodeArgs (int methodId, ObjectInputStream in)
+        throws IOException, ClassNotFoundException;
+
+    /**
+     * Writes the result of a call to the given method.
+     */
+    public void encodeResult (int methodId, Object result, ObjectOutputStream out)
+        throws IOException;
+}
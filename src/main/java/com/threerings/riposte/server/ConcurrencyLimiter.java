@@ -0,0 +1,256 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * An admission controller that caps the number of calls running at once, adjusting the cap from
+ * observed latency. Each call's latency is compared with the best recently seen for its own
+ * method, so that a server whose methods naturally differ in speed isn't taken to be overloaded,
+ * and the limit is adjusted once per window of calls from the average of those ratios rather than
+ * from any single call. While the average stays close to one the limit grows by roughly one per
+ * round trip (additive increase); when it passes the tolerance the limit shrinks by a fixed
+ * fraction (multiplicative decrease). Calls beyond the limit are refused immediately rather than
+ * queued.<br/><br/>
+ *
+ * Completing a call takes no locks: latencies are gathered with atomic counters and the window is
+ * evaluated by whichever call completes it.
+ */
+public class ConcurrencyLimiter
+{
+    /**
+     * @param initialLimit The limit to start from.
+     * @param minLimit The limit will never drop below this.
+     * @param maxLimit The limit will never rise above this.
+     */
+    public ConcurrencyLimiter (int initialLimit, int minLimit, int maxLimit)
+    {
+        _minLimit = Math.max(1, minLimit);
+        _maxLimit = Math.max(_minLimit, maxLimit);
+        _limit = Math.min(Math.max(initialLimit, _minLimit), _maxLimit);
+    }
+
+    /**
+     * Sets how many times their methods' baseline latency the calls of a window may take on
+     * average before it is taken as a sign of overload. Defaults to 2.
+     */
+    public void setTolerance (double tolerance)
+    {
+        _tolerance = Math.max(1, tolerance);
+    }
+
+    /**
+     * Sets the factor by which the limit is multiplied when overload is detected. Defaults to 0.9.
+     */
+    public void setBackoffRatio (double backoffRatio)
+    {
+        _backoffRatio = Math.min(Math.max(backoffRatio, 0.1), 1);
+    }
+
+    /**
+     * Admits a call if fewer than the current limit are running.
+     *
+     * @return true if the call may proceed, in which case {@link #release} must be called when it
+     * completes, or false if it should be refused.
+     */
+    public boolean tryAcquire ()
+    {
+        while (true) {
+            int running = _inFlight.get();
+            if (running >= (int)_limit) {
+                _rejected.incrementAndGet();
+                return false;
+            }
+            if (running + 1 >= (int)_limit / 2 && !_used) {
+                _used = true;
+            }
+            if (_inFlight.compareAndSet(running, running + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Reports that an admitted call has completed without running its method, such as one
+     * answered from a cache or refused by an auth check. Its latency isn't sampled.
+     */
+    public void release ()
+    {
+        _inFlight.decrementAndGet();
+    }
+
+    /**
+     * Reports that an admitted call has completed and adjusts the limit from the time its method
+     * took to run.
+     */
+    public void release (int serviceId, int methodId, long nanos)
+    {
+        _inFlight.decrementAndGet();
+        long ratio = getLatency(serviceId, methodId).ratio(nanos);
+        _ratioSum.addAndGet(ratio);
+        _ratioCount.incrementAndGet();
+        if (_samples.incrementAndGet() % ADJUST_WINDOW == 0 &&
+                _adjusting.compareAndSet(false, true)) {
+            try {
+                adjust();
+            } finally {
+                _adjusting.set(false);
+            }
+        }
+    }
+
+    /**
+     * Returns the number of calls that may currently run at once.
+     */
+    public int getLimit ()
+    {
+        return (int)_limit;
+    }
+
+    /**
+     * Returns the number of calls currently running.
+     */
+    public int getInFlight ()
+    {
+        return _inFlight.get();
+    }
+
+    /**
+     * Returns the number of calls that have been refused.
+     */
+    public long getRejected ()
+    {
+        return _rejected.get();
+    }
+
+    /**
+     * Returns the latency record of the given method. Methods beyond the first
+     * {@link PostMetrics#MAX_METHODS} share one, as their ids may be made up by clients.
+     */
+    protected MethodLatency getLatency (int serviceId, int methodId)
+    {
+        Long key = CallKey.methodKey(serviceId, methodId);
+        MethodLatency latency = _methods.get(key);
+        if (latency == null) {
+            if (_methods.size() >= PostMetrics.MAX_METHODS) {
+                return _otherMethods;
+            }
+            MethodLatency created = new MethodLatency();
+            latency = _methods.putIfAbsent(key, created);
+            if (latency == null) {
+                latency = created;
+            }
+        }
+        return latency;
+    }
+
+    /**
+     * Adjusts the limit from the average latency ratio of the calls completed since the last
+     * adjustment. Called by one thread at a time.
+     */
+    protected void adjust ()
+    {
+        int count = _ratioCount.getAndSet(0);
+        long sum = _ratioSum.getAndSet(0);
+        boolean used = _used;
+        _used = false;
+        if (count == 0) {
+            return;
+        }
+
+        double limit = _limit;
+        if (sum / (double)count > _tolerance * RATIO_SCALE) {
+            limit = Math.max(_minLimit, limit * _backoffRatio);
+        } else if (used) {
+            // only grow when the limit is actually being used, by about one per limit's worth of
+            // calls, which is one per round trip
+            limit = Math.min(_maxLimit, limit + count / limit);
+        }
+        _limit = limit;
+    }
+
+    /**
+     * Tracks the best recent latency of a single method.
+     */
+    protected static class MethodLatency
+    {
+        /**
+         * Records a call's latency and returns its ratio to the method's baseline, scaled by
+         * {@link #RATIO_SCALE}.
+         */
+        public long ratio (long nanos)
+        {
+            nanos = Math.max(nanos, 1);
+            // our baseline is the best latency seen over the current window of samples, falling
+            // back to the previous window's so that a single fast call doesn't set an unreachable
+            // bar
+            long windowMin;
+            do {
+                windowMin = _windowMin.get();
+            } while (nanos < windowMin && !_windowMin.compareAndSet(windowMin, nanos));
+            if (_samples.incrementAndGet() % BASELINE_WINDOW == 0) {
+                _baseline = _windowMin.getAndSet(Long.MAX_VALUE);
+            }
+            long baseline = Math.min(_baseline, Math.min(windowMin, nanos));
+            return Math.min(nanos * RATIO_SCALE / baseline, MAX_RATIO);
+        }
+
+        protected volatile long _baseline = Long.MAX_VALUE;
+        protected final AtomicLong _windowMin = new AtomicLong(Long.MAX_VALUE);
+        protected final AtomicInteger _samples = new AtomicInteger();
+    }
+
+    protected final int _minLimit;
+    protected final int _maxLimit;
+    protected volatile double _limit;
+    protected volatile double _tolerance = 2;
+    protected volatile double _backoffRatio = 0.9;
+    protected volatile boolean _used;
+
+    protected final AtomicInteger _inFlight = new AtomicInteger();
+    protected final AtomicLong _rejected = new AtomicLong();
+
+    protected final ConcurrentMap<Long, MethodLatency> _methods =
+        new ConcurrentHashMap<Long, MethodLatency>();
+    protected final MethodLatency _otherMethods = new MethodLatency();
+    protected final AtomicLong _ratioSum = new AtomicLong();
+    protected final AtomicInteger _ratioCount = new AtomicInteger();
+    protected final AtomicInteger _samples = new AtomicInteger();
+    protected final AtomicBoolean _adjusting = new AtomicBoolean();
+
+    /** The number of samples of a method over which its baseline latency is measured. */
+    protected static final int BASELINE_WINDOW = 1000;
+
+    /** The number of completed calls between adjustments of the limit. */
+    protected static final int ADJUST_WINDOW = 100;
+
+    /** Latency ratios are kept in fixed point, in units of one over this. */
+    protected static final long RATIO_SCALE = 1000;
+
+    /** No single call can push a window's average ratio beyond this, however slow it was. */
+    protected static final long MAX_RATIO = 100 * RATIO_SCALE;
+}
@@ -0,0 +1,248 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.riposte.server;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.threerings.riposte.data.LatencyHistogram;
+
+/**
+ * The statistics gathered by {@link PostMetrics} for a single service method. All updates are
+ * lock-free, so recording a call never contends with other calls to the same method.
+ */
+public class MethodMetrics
+    implements MethodMetricsMBean
+{
+    public final int serviceId;
+    public final int methodId;
+
+    public MethodMetrics (int serviceId, int methodId, String methodName)
+    {
+        this.serviceId = serviceId;
+        this.methodId = methodId;
+        _methodName = methodName;
+    }
+
+    /**
+     * Records a completed call.
+     *
+     * @param nanos The time taken to invoke the call and encode its response.
+     * @param requestBytes The size of the call in the request.
+     * @param responseBytes The size of the encoded response.
+     */
+    public void recordCall (long nanos, long requestBytes, long responseBytes)
+    {
+        _calls.incrementAndGet();
+        _requestBytes.addAndGet(requestBytes);
+        _responseBytes.addAndGet(responseBytes);
+        _latency.record(nanos);
+    }
+
+    /**
+     * Records that a call failed with the given exception.
+     */
+    public void recordException (Exception e)
+    {
+        if (e instanceof PostException) {
+            _postExceptions.incrementAndGet();
+        } else {
+            _otherExceptions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Records that a call was answered with a cached result.
+     */
+    public void recordCacheHit ()
+    {
+        _cacheHits.incrementAndGet();
+    }
+
+    /**
+     * Records that a call was refused because its caller exceeded its rate limit.
+     */
+    public void recordRateLimited ()
+    {
+        _rateLimited.incrementAndGet();
+    }
+
+    /**
+     * Records that a call was abandoned because its client's timeout had passed.
+     */
+    public void recordExpired ()
+    {
+        _expired.incrementAndGet();
+    }
+
+    /**
+     * Records that a call's result matched the one its client had cached, and so wasn't sent.
+     */
+    public void recordNotModified ()
+    {
+        _notModified.incrementAndGet();
+    }
+
+    /**
+     * Records that a call shared the result of an identical call that was already in progress.
+     */
+    public void recordCoalesced ()
+    {
+        _coalesced.incrementAndGet();
+    }
+
+    /**
+     * Records that a response containing this method's result was compressed.
+     *
+     * @param rawBytes The size of the result before compression.
+     * @param compressedBytes The result's share of the compressed response.
+     */
+    public void recordCompression (long rawBytes, long compressedBytes)
+    {
+        _compressedRawBytes.addAndGet(rawBytes);
+        _compressedBytes.addAndGet(compressedBytes);
+    }
+
+    /**
+     * Returns the histogram of this method's latencies.
+     */
+    public LatencyHistogram getLatency ()
+    {
+        return _latency;
+    }
+
+    // from interface MethodMetricsMBean
+    public String getMethodName ()
+    {
+        return _methodName;
+    }
+
+    // from interface MethodMetricsMBean
+    public long getCalls ()
+    {
+        return _calls.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getPostExceptions ()
+    {
+        return _postExceptions.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getOtherExceptions ()
+    {
+        return _otherExceptions.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getRateLimitedCalls ()
+    {
+        return _rateLimited.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getExpiredCalls ()
+    {
+        return _expired.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getNotModifiedCalls ()
+    {
+        return _notModified.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getCacheHits ()
+    {
+        return _cacheHits.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getCoalescedCalls ()
+    {
+        return _coalesced.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getRequestBytes ()
+    {
+        return _requestBytes.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public long getResponseBytes ()
+    {
+        return _responseBytes.get();
+    }
+
+    // from interface MethodMetricsMBean
+    public double getCompressionRatio ()
+    {
+        long compressed = _compressedBytes.get();
+        return (compressed == 0) ? 1 : (double)_compressedRawBytes.get() / compressed;
+    }
+
+    // from interface MethodMetricsMBean
+    public long getMeanLatencyMicros ()
+    {
+        return _latency.getMean() / 1000;
+    }
+
+    // from interface MethodMetricsMBean
+    public long getMedianLatencyMicros ()
+    {
+        return _latency.getPercentile(0.5) / 1000;
+    }
+
+    // from interface MethodMetricsMBean
+    public long get90thLatencyMicros ()
+    {
+        return _latency.getPercentile(0.9) / 1000;
+    }
+
+    // from interface MethodMetricsMBean
+    public long get99thLatencyMicros ()
+    {
+        return _latency.getPercentile(0.99) / 1000;
+    }
+
+    // from interface MethodMetricsMBean
+    public long getMaxLatencyMicros ()
+    {
+        return _latency.getMax() / 1000;
+    }
+
+    protected final String _methodName;
+    protected final AtomicLong _calls = new AtomicLong();
+    protected final AtomicLong _postExceptions = new AtomicLong();
+    protected final AtomicLong _otherExceptions = new AtomicLong();
+    protected final AtomicLong _rateLimited = new AtomicLong();
+    protected final AtomicLong _expired = new AtomicLong();
+    protected final AtomicLong _cacheHits = new AtomicLong();
+    protected final AtomicLong _notModified = new AtomicLong();
+    protected final AtomicLong _coalesced = new AtomicLong();
+    protected final AtomicLong _requestBytes = new AtomicLong();
+    protected final AtomicLong _responseBytes = new AtomicLong();
+    protected final AtomicLong _compressedRawBytes = new AtomicLong();
+    protected final AtomicLong _compressedBytes = new AtomicLong();
+    protected final LatencyHistogram _latency = new LatencyHistogram();
+}
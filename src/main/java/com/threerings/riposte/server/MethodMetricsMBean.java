@@ -0,0 +1,78 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+/**
+ * The JMX view of the statistics gathered for a single service method by {@link MethodMetrics}.
+ * Latencies are reported in microseconds.
+ */
+public interface MethodMetricsMBean
+{
+    public String getMethodName ();
+
+    public long getCalls ();
+
+    public long getPostExceptions ();
+
+    public long getOtherExceptions ();
+
+    /**
+     * Returns the number of calls refused because their caller exceeded its rate limit.
+     */
+    public long getRateLimitedCalls ();
+
+    /**
+     * Returns the number of calls abandoned after decoding because their client's timeout had
+     * passed.
+     */
+    public long getExpiredCalls ();
+
+    public long getCacheHits ();
+
+    /**
+     * Returns the number of calls whose result matched the one their client had cached, and was
+     * answered with a not modified reply in its place.
+     */
+    public long getNotModifiedCalls ();
+
+    public long getCoalescedCalls ();
+
+    public long getRequestBytes ();
+
+    public long getResponseBytes ();
+
+    /**
+     * Returns the ratio of uncompressed to compressed size over this method's compressed
+     * responses, or 1 if none have been compressed.
+     */
+    public double getCompressionRatio ();
+
+    public long getMeanLatencyMicros ();
+
+    public long getMedianLatencyMicros ();
+
+    public long get90thLatencyMicros ();
+
+    public long get99thLatencyMicros ();
+
+    public long getMaxLatencyMicros ();
+}
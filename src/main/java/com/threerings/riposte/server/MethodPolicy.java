@@ -0,0 +1,110 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+/**
+ * Describes how {@link PostManager} should treat calls to a particular service method, beyond
+ * simply invoking it. Policies are normally built by generated dispatchers from annotations on
+ * the service interface, such as {@link CacheResult} and {@link CoalesceCalls}.
+ */
+public class MethodPolicy
+{
+    /**
+     * Allows results to be reused for identical calls, as described by {@link CacheResult}.
+     *
+     * @return this policy, for chaining.
+     */
+    public MethodPolicy cacheResults (long ttl, int maxEntries, boolean shareAcrossAuth)
+    {
+        _cacheTtl = ttl;
+        _cacheMaxEntries = maxEntries;
+        _cacheShared = shareAcrossAuth;
+        return this;
+    }
+
+    /**
+     * Has identical concurrent calls share a single invocation, as described by
+     * {@link CoalesceCalls}.
+     *
+     * @return this policy, for chaining.
+     */
+    public MethodPolicy coalesceCalls (boolean shareAcrossAuth)
+    {
+        _coalesced = true;
+        _coalesceShared = shareAcrossAuth;
+        return this;
+    }
+
+    /**
+     * Returns true if results of this method may be cached.
+     */
+    public boolean isCached ()
+    {
+        return _cacheTtl > 0 && _cacheMaxEntries > 0;
+    }
+
+    /**
+     * Returns the number of milliseconds for which a cached result may be reused.
+     */
+    public long getCacheTtl ()
+    {
+        return _cacheTtl;
+    }
+
+    /**
+     * Returns the maximum number of results cached for this method.
+     */
+    public int getCacheMaxEntries ()
+    {
+        return _cacheMaxEntries;
+    }
+
+    /**
+     * Returns true if cached results are shared between calls made with different auth codes.
+     */
+    public boolean isCacheShared ()
+    {
+        return _cacheShared;
+    }
+
+    /**
+     * Returns true if identical concurrent calls to this method share a single invocation.
+     */
+    public boolean isCoalesced ()
+    {
+        return _coalesced;
+    }
+
+    /**
+     * Returns true if calls made with different auth codes may share an invocation.
+     */
+    public boolean isCoalesceShared ()
+    {
+        return _coalesceShared;
+    }
+
+    protected long _cacheTtl;
+    protected int _cacheMaxEntries;
+    protected boolean _cacheShared;
+    protected boolean _coalesced;
+    protected boolean _coalesceShared;
+}
@@ -0,0 +1,131 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+package com.threerings.riposte.server;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.threerings.riposte.Log.log;
+
+/**
+ * Logs each time a virtual thread is pinned to its carrier thread for longer than a threshold,
+ * with the stack at which it happened, by streaming the JVM's own flight recorder events. A
+ * service call that blocks while pinned holds up every other virtual thread waiting for that
+ * carrier, so these are the places to look at when a server dispatching on virtual threads
+ * stalls.<br/><br/>
+ *
+ * Only a JVM with virtual threads records pinning events, so on any other JVM {@link #start}
+ * returns null and there is nothing to monitor.
+ */
+public class PinnedThreadMonitor
+{
+    /**
+     * Starts logging pinned virtual threads.
+     *
+     * @param thresholdMillis Pinning that lasts less than this is ignored.
+     *
+     * @return the running monitor, or null if this JVM can't stream flight recorder events.
+     */
+    public static PinnedThreadMonitor start (long thresholdMillis)
+    {
+        PinnedThreadMonitor monitor = new PinnedThreadMonitor();
+        try {
+            Class<?> streamClass = Class.forName("jdk.jfr.consumer.RecordingStream");
+            Class<?> settingsClass = Class.forName("jdk.jfr.EventSettings");
+            Class<?> durationClass = Class.forName("java.time.Duration");
+            Class<?> consumerClass = Class.forName("java.util.function.Consumer");
+
+            Object stream = streamClass.getConstructor().newInstance();
+            Object settings = streamClass.getMethod("enable", String.class).invoke(
+                stream, PINNED_EVENT);
+            settingsClass.getMethod("withThreshold", durationClass).invoke(settings,
+                durationClass.getMethod("ofMillis", Long.TYPE).invoke(null, thresholdMillis));
+            settingsClass.getMethod("withStackTrace").invoke(settings);
+            streamClass.getMethod("onEvent", String.class, consumerClass).invoke(
+                stream, PINNED_EVENT, monitor.newConsumer(consumerClass));
+            streamClass.getMethod("startAsync").invoke(stream);
+            monitor._stream = stream;
+
+        } catch (Exception e) {
+            log.warning("Unable to monitor pinned virtual threads on this JVM", "error", e);
+            return null;
+        }
+        log.info("Logging virtual threads pinned to their carrier", "threshold", thresholdMillis);
+        return monitor;
+    }
+
+    /**
+     * Returns the number of times a virtual thread has been pinned beyond the threshold since the
+     * monitor was started.
+     */
+    public long getPinnedCount ()
+    {
+        return _pinned.get();
+    }
+
+    /**
+     * Stops monitoring and releases the monitor's flight recording.
+     */
+    public void stop ()
+    {
+        try {
+            _stream.getClass().getMethod("close").invoke(_stream);
+        } catch (Exception e) {
+            log.warning("Failed to stop pinned virtual thread monitor", e);
+        }
+    }
+
+    /**
+     * Creates the event consumer that the flight recorder calls back with each pinning event.
+     */
+    protected Object newConsumer (Class<?> consumerClass)
+    {
+        return Proxy.newProxyInstance(PinnedThreadMonitor.class.getClassLoader(),
+            new Class<?>[] { consumerClass }, new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args)
+                    throws Throwable {
+                    if (!"accept".equals(method.getName())) {
+                        return method.invoke(this, args);
+                    }
+                    pinned(args[0]);
+                    return null;
+                }
+            });
+    }
+
+    /**
+     * Called on the flight recorder's thread with each pinning event. The event's description
+     * includes the pinned thread, how long it was pinned and the top of its stack.
+     */
+    protected void pinned (Object event)
+    {
+        _pinned.incrementAndGet();
+        log.warning("Virtual thread was pinned to its carrier thread", "event", event);
+    }
+
+    protected Object _stream;
+    protected AtomicLong _pinned = new AtomicLong();
+
+    /** The flight recorder event emitted when a virtual thread blocks while pinned. */
+    protected static final String PINNED_EVENT = "jdk.VirtualThreadPinned";
+}
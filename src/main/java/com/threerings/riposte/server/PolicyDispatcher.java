@@ -0,0 +1,39 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+/**
+ * A {@link PostDispatcher} that can describe how calls to each of its methods should be handled.
+ * Dispatchers generated by the genriposte task implement this interface.
+ */
+public interface PolicyDispatcher extends PostDispatcher
+{
+    /**
+     * Returns the policy for the given method, or null if calls to it need no special handling.
+     */
+    public MethodPolicy getMethodPolicy (int methodId);
+
+    /**
+     * Returns true if the given id names one of this service's methods.
+     */
+    public boolean hasMethod (int methodId);
+}
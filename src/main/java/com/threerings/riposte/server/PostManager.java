@@ -20,30 +20,45 @@
 
 package com.threerings.riposte.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.InflaterInputStream;
 
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 import com.google.common.base.Objects;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 
 import com.google.inject.Inject;
 import com.google.inject.Injector;
+import com.google.inject.MembersInjector;
 import com.google.inject.Singleton;
 import com.google.inject.internal.Nullable;
 import com.google.inject.name.Named;
+import com.google.inject.spi.InjectionPoint;
 
 import com.samskivert.util.StringUtil;
 import com.threerings.io.ObjectInputStream;
 import com.threerings.io.ObjectOutputStream;
 
+import com.threerings.riposte.data.BufferPool;
+import com.threerings.riposte.data.ClassDictionary;
+import com.threerings.riposte.data.DeflaterPool;
+import com.threerings.riposte.data.EncodingBuffer;
 import com.threerings.riposte.data.PostCodes;
+import com.threerings.riposte.data.PostProtocol;
 import com.threerings.riposte.data.StreamableError;
+import com.threerings.riposte.data.VarInt;
 
 import static com.threerings.riposte.Log.log;
 
@@ -63,6 +78,9 @@ public class PostManager
     /** The name used in the @Named annotation for the constructor's injected authLocal field */
     public static final String AUTH_LOCAL = "RiposeAuthLocal";
 
+    /** The default for {@link #setMaxCoalescedWait}, in milliseconds. */
+    public static final long DEFAULT_MAX_COALESCED_WAIT = 30 * 1000L;
+
     /**
      * Constructor for PostManager. PostManager may be Guice injected, or can be constructed by
      * hand. If it is created by Guice, the protected _injector field will be injected by Guice, and
@@ -86,6 +104,7 @@ public class PostManager
                         @Nullable @Named(AUTH_LOCAL) ThreadLocal<String> authLocal)
     {
         _clientVersion = clientVersion == null ? "" : clientVersion;
+        _versionToken = PostProtocol.versionToken(_clientVersion);
         _authLocal = authLocal;
         if (dispatchers == null) {
             _dispatchers = Maps.newHashMap();
@@ -112,120 +131,876 @@ public class PostManager
     public void doServiceCall (HttpServletRequest req, HttpServletResponse rsp)
         throws IOException
     {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        InputStream in = req.getInputStream();
+        EncodingBuffer out = _responseBuffers.acquire();
+        EncodingBuffer compressed = null;
+        TrafficCapture capture = _capture;
+        long ticket = (capture == null) ? -1 : capture.startSample();
+        EncodingBuffer captured = null;
+        long timestamp = 0, start = System.nanoTime();
+        if (ticket >= 0) {
+            captured = _responseBuffers.acquire();
+            timestamp = System.currentTimeMillis();
+        }
         try {
-            int count;
-            byte[] buf = new byte[1024];
-            while (-1 < (count = in.read(buf))) {
-                bos.write(buf, 0, count);
+            // reject requests that tell us up front that they're too big, without reading them
+            PostRequest request = null;
+            int length = req.getContentLength();
+            if (_maxRequestBytes > 0 && length > _maxRequestBytes) {
+                log.warning("Rejecting oversized request", "length", length,
+                    "max", _maxRequestBytes);
+                sendException(new PostException(PostCodes.REQUEST_TOO_LARGE),
+                    new ObjectOutputStream(out));
+
+            } else {
+                request = processRequest(req, rsp, out, captured);
+            }
+
+            long handled = System.nanoTime() - start;
+            if (req.getHeader(PostProtocol.TIMING_HEADER) != null) {
+                rsp.setHeader(PostProtocol.HANDLING_TIME_HEADER, String.valueOf(handled));
+            }
+            if (shouldCompress(req, out)) {
+                compressed = _responseBuffers.acquire();
+                _deflaters.deflate(out.getBuffer(), 0, out.size(), compressed);
+                recordCompression(request, out.size(), compressed.size());
+                rsp.setHeader("Content-Encoding", PostProtocol.DEFLATE);
+                writeResponse(rsp, compressed);
+            } else {
+                writeResponse(rsp, out);
             }
+
+            // requests that couldn't be decoded aren't captured, as we can't find their auth code
+            if (captured != null && request != null) {
+                capture.record(ticket, timestamp, handled, out.size(), captured.getBuffer(), 0,
+                    captured.size(), request.authOffset, request.authLength);
+                ticket = -1;
+            }
+
         } finally {
-            in.close();
+            if (ticket >= 0) {
+                capture.skip(ticket);
+            }
+            _responseBuffers.release(out);
+            _responseBuffers.release(compressed);
+            _responseBuffers.release(captured);
         }
-        byte[] bytesFromClient = bos.toByteArray();
-        bos = null;
+    }
 
-        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytesFromClient));
-        ObjectOutputStream oos = new ObjectOutputStream(rsp.getOutputStream());
+    /**
+     * Answers a request with a single error, without reading it, for when the server can't take
+     * the request on at all. The client fails every call in the request with the given code.
+     */
+    public void refuseServiceCall (HttpServletResponse rsp, String cause)
+        throws IOException
+    {
+        EncodingBuffer out = _responseBuffers.acquire();
+        try {
+            sendException(new PostException(cause), new ObjectOutputStream(out));
+            writeResponse(rsp, out);
+        } finally {
+            _responseBuffers.release(out);
+        }
+    }
+
+    /**
+     * Sets the largest request body, in bytes, that will be accepted. Requests that declare a
+     * larger Content-Length are rejected before any of their body is read, and requests that don't
+     * are treated as a streaming error once they pass the limit. Zero, the default, accepts
+     * requests of any size.
+     */
+    public void setMaxRequestBytes (int maxRequestBytes)
+    {
+        _maxRequestBytes = maxRequestBytes;
+    }
+
+    /**
+     * Sets the size, in bytes, above which responses are compressed for clients that accept the
+     * {@link PostProtocol#DEFLATE} encoding. Smaller responses never pay for compression. Zero, the
+     * default, disables response compression.
+     */
+    public void setCompressionThreshold (int compressionThreshold)
+    {
+        _compressionThreshold = compressionThreshold;
+    }
+
+    /**
+     * Installs an admission controller that limits the number of calls invoked at once. Calls
+     * that it refuses fail immediately with {@link PostCodes#OVERLOADED}, which tells clients to
+     * back off. By default every call is admitted.
+     */
+    public void setConcurrencyLimiter (ConcurrencyLimiter limiter)
+    {
+        _limiter = limiter;
+    }
+
+    /**
+     * Installs a limit on the rate at which each auth code may make calls, so that no single
+     * client can take most of the server's throughput. Calls beyond it fail immediately with
+     * {@link PostCodes#RATE_LIMITED}. Calls without an auth code are not limited. By default no
+     * limit is applied.
+     */
+    public void setRateLimiter (RateLimiter rateLimiter)
+    {
+        _rateLimiter = rateLimiter;
+    }
+
+    /**
+     * Sets the longest, in milliseconds, that a call without a deadline of its own waits for an
+     * identical call in progress to share its result. Calls with a deadline wait until it passes
+     * at most. Calls whose wait runs out fail with {@link PostCodes#DEADLINE_EXCEEDED}, so that a
+     * call stuck downstream doesn't hold every caller waiting on it, and their concurrency slots,
+     * with it. The default is {@link #DEFAULT_MAX_COALESCED_WAIT}.
+     */
+    public void setMaxCoalescedWait (long millis)
+    {
+        _maxCoalescedWait = millis;
+    }
+
+    /**
+     * Starts capturing a sample of the requests received into the given capture, or stops
+     * capturing if it is null. Captures can be replayed with
+     * {@link com.threerings.riposte.tools.ReplayTraffic}. By default nothing is captured.
+     */
+    public void setTrafficCapture (TrafficCapture capture)
+    {
+        _capture = capture;
+    }
 
-        String methodName = "UNKNOWN METHOD";
+    /**
+     * Sets the table of classes that compact clients may stream by token rather than by name.
+     * Requests streamed with a different table are refused with
+     * {@link PostCodes#DICTIONARY_MISMATCH}, and clients resend them without it.
+     */
+    public void setClassDictionary (ClassDictionary dictionary)
+    {
+        _dictionary = dictionary;
+    }
+
+    /**
+     * Reads the service calls from the request, invokes them and encodes their results, or the
+     * errors that prevented them, into the response buffer.
+     *
+     * @param captured If not null, the uncompressed request body is copied here as it is read.
+     *
+     * @return the decoded request, or null if it could not be decoded.
+     */
+    protected PostRequest processRequest (HttpServletRequest req, HttpServletResponse rsp,
+                                          EncodingBuffer out, EncodingBuffer captured)
+        throws IOException
+    {
+        // the size limit and the bytes we keep for logging apply to the uncompressed request
+        InputStream body = req.getInputStream();
+        if (PostProtocol.DEFLATE.equals(req.getHeader("Content-Encoding"))) {
+            body = new InflaterInputStream(body);
+        }
+        if (captured != null) {
+            body = new TrafficCapture.TeeInputStream(body, captured);
+        }
+        RequestInputStream in = new RequestInputStream(body, _readBuffers, _maxRequestBytes);
+        ObjectInputStream ois = new ObjectInputStream(in);
+
+        PostRequest request = new PostRequest();
+        try {
+            readRequest(in, ois, request);
+
+        } catch (PostException pe) {
+            if (PostCodes.STREAMING_ERROR.equals(pe.getMessage())) {
+                log.warning("Got streaming error from client", "read", in.getCount(),
+                    "lastBytes", StringUtil.hexlate(in.getTail()));
+            }
+            ObjectOutputStream oos = restartResponse(out, 0);
+            writeResponseHeader(request, PostCodes.DICTIONARY_MISMATCH.equals(pe.getMessage()) ?
+                PostProtocol.FLAG_DICTIONARY : 0, out);
+            sendException(pe, oos);
+            return null;
+
+        } catch (Exception e) {
+            logServiceException(e, "UNKNOWN METHOD");
+            ObjectOutputStream oos = restartResponse(out, 0);
+            writeResponseHeader(request, 0, out);
+            sendException(e, oos);
+            return null;
+
+        } finally {
+            ois.close();
+        }
+
+        int flags = (request.batch ? PostProtocol.FLAG_BATCH : 0) |
+            (request.typed ? PostProtocol.FLAG_TYPED : 0) |
+            (request.validators ? PostProtocol.FLAG_VALIDATORS : 0);
+        writeResponseHeader(request, flags, out);
+        if (!request.batch) {
+            invokeCall(request.invokers.get(0), out);
+            return request;
+        }
+
+        // each result in a batch is encoded on its own and preceded by its length
+        if (!request.compact) {
+            rsp.setHeader(PostProtocol.BATCH_HEADER, String.valueOf(request.invokers.size()));
+        }
+        EncodingBuffer callOut = _responseBuffers.acquire();
+        try {
+            for (ServiceMethodInvoker invoker : request.invokers) {
+                callOut.reset();
+                invokeCall(invoker, callOut);
+                if (request.compact) {
+                    VarInt.write(out, callOut.size());
+                } else {
+                    out.writeInt(callOut.size());
+                }
+                callOut.writeTo(out);
+            }
+        } finally {
+            _responseBuffers.release(callOut);
+        }
+        return request;
+    }
+
+    /**
+     * Checks auth for and invokes a single service call, encoding its result or error into the
+     * given buffer.
+     */
+    protected void invokeCall (ServiceMethodInvoker invoker, EncodingBuffer out)
+        throws IOException
+    {
+        long start = System.nanoTime();
+        int mark = out.size();
+        String methodName = invoker.getMethodName();
+        MethodMetrics metrics = getMethodMetrics(invoker);
+        ConcurrencyLimiter limiter = _limiter;
+        RateLimiter rateLimiter = _rateLimiter;
+        boolean admitted = false;
         try {
-            ServiceMethodInvoker invoker = getInvoker(ois);
-            methodName = invoker.getMethodName();
+            // check the caller's rate before it takes up one of our concurrency slots
+            if (rateLimiter != null && invoker.authCode != null &&
+                    !rateLimiter.tryAcquire(invoker.authCode)) {
+                metrics.recordRateLimited();
+                throw new PostException(PostCodes.RATE_LIMITED);
+            }
+            // shed load up front, rather than letting every call slow down until they time out
+            if (limiter != null) {
+                if (!limiter.tryAcquire()) {
+                    throw new PostException(PostCodes.OVERLOADED);
+                }
+                admitted = true;
+            }
+            if (invoker.request != null && invoker.request.isExpired()) {
+                metrics.recordExpired();
+                throw new PostException(PostCodes.DEADLINE_EXCEEDED);
+            }
             if (_authLocal != null) {
                 _authLocal.set(invoker.authCode);
             }
-            if (checkAuth(invoker)) {
-                sendResult(invoker.invoke(), oos);
+            if (!checkAuth(invoker)) {
+                throw new PostException(PostCodes.AUTH_CHECK_FAILED);
+            }
+            MethodPolicy policy = invoker.getPolicy();
+            if (policy != null && (policy.isCached() || policy.isCoalesced())) {
+                invokeShared(invoker, policy, metrics, out);
             } else {
-                sendException(new PostException(PostCodes.AUTH_CHECK_FAILED), oos);
+                sendResult(invoker, invoker.invoke(), new ObjectOutputStream(out));
             }
 
         } catch (PostException pe) {
-            if (PostCodes.STREAMING_ERROR.equals(pe.getMessage())) {
-                log.warning("Got streaming error from client", "inBytes",
-                    StringUtil.hexlate(bytesFromClient));
-            }
-            sendException(pe, oos);
+            metrics.recordException(pe);
+            sendException(invoker, pe, restartResponse(out, mark));
 
         } catch (Exception e) {
             // accepting any exception so that Riposte can share services with GWT.  Include the
             // method name in the main log line so that it gets picked up by the log summarizer
+            metrics.recordException(e);
             logServiceException(e, methodName);
-            sendException(e, oos);
+            sendException(invoker, e, restartResponse(out, mark));
 
         } finally {
-            ois.close();
-            oos.close();
+            // don't leave the auth code behind for whatever call next runs on this thread
+            if (_authLocal != null) {
+                _authLocal.remove();
+            }
+            // only calls that ran the method say anything about how loaded it is; a cache hit or
+            // an auth failure would otherwise set a baseline that no real call could meet
+            if (admitted && invoker.invokeNanos >= 0) {
+                limiter.release(invoker.serviceId, invoker.methodId, invoker.invokeNanos);
+            } else if (admitted) {
+                limiter.release();
+            }
+        }
+        if (invoker.validated) {
+            revalidate(invoker, metrics, out, mark);
         }
+        invoker.responseBytes = out.size() - mark;
+        metrics.recordCall(System.nanoTime() - start, invoker.requestBytes, invoker.responseBytes);
     }
 
     /**
-     * Override this method to perform auth at the invoker level, which has acceess to the serviceId
-     * and methodId
+     * Replaces the encoded result of a call whose client wants a validator with a
+     * {@link PostProtocol#RESULT_NOT_MODIFIED} reply, if the client's cached result has the same
+     * validator, or else precedes it with {@link PostProtocol#RESULT_MODIFIED} and its validator.
+     *
+     * @param mark The position in the buffer at which the call's result starts.
      */
-    protected boolean checkAuth (ServiceMethodInvoker invoker)
+    protected void revalidate (ServiceMethodInvoker invoker, MethodMetrics metrics,
+                               EncodingBuffer out, int mark)
     {
-        return true;
+        int length = out.size() - mark;
+        long validator = validator(out.getBuffer(), mark, length);
+        if (invoker.validator != null && invoker.validator == validator) {
+            metrics.recordNotModified();
+            out.truncate(mark);
+            out.write(PostProtocol.RESULT_NOT_MODIFIED);
+            return;
+        }
+
+        // slide the result along to make room for the status and validator in front of it
+        for (int ii = 0; ii < 9; ii++) {
+            out.write(0);
+        }
+        byte[] buf = out.getBuffer();
+        System.arraycopy(buf, mark, buf, mark + 9, length);
+        buf[mark] = PostProtocol.RESULT_MODIFIED;
+        for (int ii = 1; ii < 9; ii++) {
+            buf[mark + ii] = (byte)(validator >>> (64 - 8 * ii));
+        }
     }
 
-    protected ServiceMethodInvoker getInvoker (ObjectInputStream ois)
+    /**
+     * Returns the validator of an encoded result, a 64-bit FNV-1a hash of its bytes.
+     */
+    protected static long validator (byte[] buf, int off, int len)
+    {
+        long hash = 0xcbf29ce484222325L;
+        for (int ii = off, end = off + len; ii < end; ii++) {
+            hash ^= (buf[ii] & 0xFF);
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    /**
+     * Answers a call to a method whose results may be shared with identical calls. A cached result
+     * from an earlier call is reused if one is available. Otherwise, if an identical call is
+     * already in progress, we wait for and reuse its result rather than invoking the method again.
+     * Failing that, the call is invoked and its result made available to later calls.
+     */
+    protected void invokeShared (ServiceMethodInvoker invoker, MethodPolicy policy,
+                                 MethodMetrics metrics, EncodingBuffer out)
         throws Exception
     {
-        String authCode = null;
-        int serviceId;
-        int methodId;
+        byte[] args = encodeArgs(invoker);
+
+        ResultCache cache = null;
+        CallKey cacheKey = null;
+        if (policy.isCached()) {
+            cache = getResultCache(invoker, policy);
+            cacheKey = new CallKey(invoker.serviceId, invoker.methodId,
+                policy.isCacheShared() ? null : invoker.authCode, args);
+            byte[] result = cache.get(cacheKey);
+            if (result != null) {
+                metrics.recordCacheHit();
+                out.write(result, 0, result.length);
+                return;
+            }
+        }
+
+        CallKey flightKey = null;
+        CallFlight flight = null;
+        if (policy.isCoalesced()) {
+            flightKey = new CallKey(invoker.serviceId, invoker.methodId,
+                policy.isCoalesceShared() ? null : invoker.authCode, args);
+            flight = new CallFlight();
+            CallFlight leader = _flights.putIfAbsent(flightKey, flight);
+            if (leader != null) {
+                metrics.recordCoalesced();
+                PostRequest request = invoker.request;
+                boolean deadline = (request != null && request.timeout > 0);
+                byte[] result = leader.await(deadline ? request.getRemainingNanos() :
+                    TimeUnit.MILLISECONDS.toNanos(_maxCoalescedWait));
+                if (result == null) {
+                    if (deadline) {
+                        metrics.recordExpired();
+                    }
+                    throw new PostException(PostCodes.DEADLINE_EXCEEDED);
+                }
+                out.write(result, 0, result.length);
+                return;
+            }
+        }
+
         try {
-            String version = ois.readUTF();
-            if (!Objects.equal(_clientVersion, version)) {
-                log.warning("Version mismatch from client", "required", _clientVersion,
-                    "supplied", version);
-                throw new PostException(PostCodes.VERSION_MISMATCH);
+            // the buffer may already hold the response header, which isn't part of the result
+            int mark = out.size();
+            sendResult(invoker, invoker.invoke(), new ObjectOutputStream(out));
+            byte[] result = new byte[out.size() - mark];
+            System.arraycopy(out.getBuffer(), mark, result, 0, result.length);
+            if (cache != null) {
+                cache.put(cacheKey, result);
+            }
+            if (flight != null) {
+                flight.result = result;
             }
 
-            if (_authLocal != null) {
-                authCode = ois.readUTF();
+        } catch (Exception e) {
+            if (flight != null) {
+                flight.error = e;
+            }
+            throw e;
+
+        } finally {
+            if (flight != null) {
+                _flights.remove(flightKey, flight);
+                flight.complete();
+            }
+        }
+    }
+
+    /**
+     * Returns the cache for results of the given call's method, creating it if need be.
+     */
+    protected ResultCache getResultCache (ServiceMethodInvoker invoker, MethodPolicy policy)
+    {
+        Long mkey = CallKey.methodKey(invoker.serviceId, invoker.methodId);
+        ResultCache cache = _resultCaches.get(mkey);
+        if (cache == null) {
+            ResultCache created =
+                new ResultCache(policy.getCacheTtl(), policy.getCacheMaxEntries());
+            cache = _resultCaches.putIfAbsent(mkey, created);
+            if (cache == null) {
+                cache = created;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the canonical encoding of the given call's args, used to recognize identical calls.
+     */
+    protected byte[] encodeArgs (ServiceMethodInvoker invoker)
+        throws IOException
+    {
+        EncodingBuffer buf = _responseBuffers.acquire();
+        try {
+            // results encoded differently can't be shared, so the calls that want them differ too
+            buf.write((invoker.isTyped() ? 1 : 0) | (invoker.getDictionary() != null ? 2 : 0));
+            new ObjectOutputStream(buf).writeObject(invoker.args);
+            return buf.toByteArray();
+        } finally {
+            _responseBuffers.release(buf);
+        }
+    }
+
+    /**
+     * Discards anything encoded into the response buffer after the given mark, such as a partially
+     * written result, and returns a fresh stream with which to encode a replacement.
+     */
+    protected ObjectOutputStream restartResponse (EncodingBuffer out, int mark)
+    {
+        out.truncate(mark);
+        return new ObjectOutputStream(out);
+    }
+
+    /**
+     * Writes the header that starts the response to a compact request. Responses to original
+     * requests have none.
+     *
+     * @param flags The FLAG bits of the response, from {@link PostProtocol}.
+     */
+    protected void writeResponseHeader (PostRequest request, int flags, EncodingBuffer out)
+        throws IOException
+    {
+        if (request.compact) {
+            out.write(PostProtocol.MAGIC);
+            out.write(flags);
+            if ((flags & PostProtocol.FLAG_BATCH) != 0) {
+                VarInt.write(out, request.invokers.size());
+            }
+        }
+    }
+
+    /**
+     * Returns true if the encoded response is large enough to be worth compressing and the client
+     * can decompress it.
+     */
+    protected boolean shouldCompress (HttpServletRequest req, EncodingBuffer out)
+    {
+        if (_compressionThreshold <= 0 || out.size() < _compressionThreshold) {
+            return false;
+        }
+        String accepted = req.getHeader("Accept-Encoding");
+        return accepted != null && accepted.indexOf(PostProtocol.DEFLATE) != -1;
+    }
+
+    /**
+     * Credits the calls in a request with their share of a compressed response.
+     */
+    protected void recordCompression (PostRequest request, int rawBytes, int compressedBytes)
+    {
+        if (request == null) {
+            return;
+        }
+        for (ServiceMethodInvoker invoker : request.invokers) {
+            getMethodMetrics(invoker).recordCompression(invoker.responseBytes,
+                invoker.responseBytes * compressedBytes / rawBytes);
+        }
+    }
+
+    /**
+     * Returns the metrics to which a call should be credited. Calls to methods that the service
+     * doesn't have share a single entry, so that clients can't create them at will.
+     */
+    protected MethodMetrics getMethodMetrics (ServiceMethodInvoker invoker)
+    {
+        if (invoker.dispatcher instanceof PolicyDispatcher &&
+                !((PolicyDispatcher)invoker.dispatcher).hasMethod(invoker.methodId)) {
+            return _metrics.getUnknownMethods();
+        }
+        return _metrics.getMethod(invoker.serviceId, invoker.methodId, invoker.getMethodName());
+    }
+
+    /**
+     * Writes the encoded response to the client in a single call with its exact Content-Length,
+     * which spares the container from falling back to a chunked encoding.
+     */
+    protected void writeResponse (HttpServletResponse rsp, EncodingBuffer out)
+        throws IOException
+    {
+        rsp.setHeader("Vary", "Accept-Encoding");
+        rsp.setContentLength(out.size());
+        OutputStream os = rsp.getOutputStream();
+        out.writeTo(os);
+        os.close();
+    }
+
+    /**
+     * Returns the registry of per-method call statistics kept by this manager.
+     */
+    public PostMetrics getMetrics ()
+    {
+        return _metrics;
+    }
+
+    /**
+     * Installs a verifier that the default {@link #checkAuth} consults about the auth code of
+     * every call. Calls without an auth code, which are only made when this manager has no auth
+     * local, are not checked. By default every call is allowed.
+     */
+    public void setAuthVerifier (AuthVerifier verifier)
+    {
+        _authVerifier = verifier;
+    }
+
+    /**
+     * Override this method to perform auth at the invoker level, which has acceess to the serviceId
+     * and methodId. The default implementation consults the {@link AuthVerifier}, if one has been
+     * installed.
+     */
+    protected boolean checkAuth (ServiceMethodInvoker invoker)
+    {
+        AuthVerifier verifier = _authVerifier;
+        return verifier == null || invoker.authCode == null ||
+            verifier.isValid(invoker.authCode, invoker.serviceId);
+    }
+
+    /**
+     * Reads the header and every service call from a request, in either the original or the
+     * compact format described by {@link PostProtocol}. A request holds either a single call, or
+     * a batch of calls, all of which share the version and auth code at the start of the request.
+     */
+    protected void readRequest (RequestInputStream in, ObjectInputStream ois, PostRequest request)
+        throws Exception
+    {
+        request.received = System.nanoTime();
+        try {
+            if (in.peek() == PostProtocol.MAGIC) {
+                request.compact = true;
+                readCompactRequest(in, ois, request);
+            } else {
+                readOriginalRequest(in, ois, request);
             }
-            serviceId = ois.readInt();
-            methodId = ois.readInt();
         } catch (IOException ioe) {
             log.warning("Exception encountered streaming the pre-args values", ioe);
             throw new PostException(PostCodes.STREAMING_ERROR);
         }
 
-        Object[] args;
-        try {
-            args = (Object[]) ois.readObject();
-        } catch (Exception e) {
-            log.warning("Exception encountered streaming the args", "serviceId", serviceId,
-                "methodId", methodId, e);
+        // the servlet stream can't tell us how much is left without blocking, so read a byte
+        if (ois.read() != -1) {
+            log.warning("PostRequest has extra bytes", "extra", ois.available() + 1,
+                "calls", request.invokers.size());
             throw new PostException(PostCodes.STREAMING_ERROR);
         }
+    }
 
-        if (ois.available() != 0) {
-            log.warning("PostRequest has extra bytes", "extra",
-                    ois.available(), "serviceId", serviceId, "methodId", methodId);
+    /**
+     * Reads a request that starts with the full client version string and gives its ids as
+     * fixed length ints.
+     */
+    protected void readOriginalRequest (RequestInputStream in, ObjectInputStream ois,
+                                        PostRequest request)
+        throws Exception
+    {
+        String version = ois.readUTF();
+        if (!Objects.equal(_clientVersion, version)) {
+            log.warning("Version mismatch from client", "required", _clientVersion,
+                "supplied", version);
+            throw new PostException(PostCodes.VERSION_MISMATCH);
+        }
+
+        if (_authLocal != null) {
+            request.authOffset = (int)in.getPosition();
+            request.authCode = ois.readUTF();
+            request.authLength = (int)in.getPosition() - request.authOffset;
+        }
+        int serviceId = ois.readInt();
+        // optional header fields are introduced by markers in place of the service id
+        while (serviceId == PostProtocol.TIMEOUT) {
+            request.timeout = Math.max(ois.readInt(), 1);
+            serviceId = ois.readInt();
+        }
+
+        if (serviceId == PostProtocol.BATCH) {
+            request.batch = true;
+            int count = checkBatchSize(ois.readInt());
+            for (int ii = 0; ii < count; ii++) {
+                long start = in.getPosition();
+                readCall(in, ois, request, ois.readInt(), start);
+            }
+        } else {
+            readCall(in, ois, request, serviceId, 0);
+        }
+    }
+
+    /**
+     * Reads a request in the compact format, which starts with {@link PostProtocol#MAGIC}.
+     */
+    protected void readCompactRequest (RequestInputStream in, ObjectInputStream ois,
+                                       PostRequest request)
+        throws Exception
+    {
+        ois.readUnsignedByte(); // skip the magic byte
+        int protocol = ois.readUnsignedByte();
+        if (protocol != PostProtocol.COMPACT_VERSION) {
+            log.warning("Unsupported compact protocol version", "version", protocol);
             throw new PostException(PostCodes.STREAMING_ERROR);
         }
+        int flags = ois.readUnsignedByte();
+        int token = ois.readInt();
+        if (token != _versionToken) {
+            log.warning("Version mismatch from client", "required", _clientVersion,
+                "supplied", Integer.toHexString(token));
+            throw new PostException(PostCodes.VERSION_MISMATCH);
+        }
 
+        if ((flags & PostProtocol.FLAG_DICTIONARY) != 0) {
+            int hash = ois.readInt();
+            ClassDictionary dictionary = _dictionary;
+            if (dictionary == null || dictionary.getHash() != hash) {
+                log.info("Refusing request streamed with an unknown class dictionary",
+                    "hash", Integer.toHexString(hash));
+                throw new PostException(PostCodes.DICTIONARY_MISMATCH);
+            }
+            dictionary.seed(ois);
+            request.dictionary = dictionary;
+        }
+
+        String authCode = null;
+        if ((flags & PostProtocol.FLAG_AUTH) != 0) {
+            request.authOffset = (int)in.getPosition();
+            authCode = ois.readUTF();
+            request.authLength = (int)in.getPosition() - request.authOffset;
+        }
+        if (_authLocal != null) {
+            // a client that should have sent an auth code and didn't is checked against nothing
+            request.authCode = (authCode == null) ? "" : authCode;
+        }
+        if ((flags & PostProtocol.FLAG_TIMEOUT) != 0) {
+            request.timeout = Math.max(VarInt.read(ois), 1);
+        }
+        request.typed = (flags & PostProtocol.FLAG_TYPED) != 0;
+        request.validators = (flags & PostProtocol.FLAG_VALIDATORS) != 0;
+
+        if ((flags & PostProtocol.FLAG_BATCH) != 0) {
+            request.batch = true;
+            int count = checkBatchSize(VarInt.read(ois));
+            for (int ii = 0; ii < count; ii++) {
+                long start = in.getPosition();
+                readCall(in, ois, request, VarInt.read(ois), start);
+            }
+        } else {
+            readCall(in, ois, request, VarInt.read(ois), 0);
+        }
+    }
+
+    /**
+     * Reads the method id and args of a call to the given service and adds it to the request.
+     *
+     * @param start The position in the request at which the call started.
+     */
+    protected void readCall (RequestInputStream in, ObjectInputStream ois, PostRequest request,
+                             int serviceId, long start)
+        throws Exception
+    {
+        checkDeadline(request);
+        int methodId = request.compact ? VarInt.read(ois) : ois.readInt();
+        int validation = request.validators ? ois.readUnsignedByte() : PostProtocol.VALIDATOR_NONE;
+        Long validator = (validation == PostProtocol.VALIDATOR_SENT) ? ois.readLong() : null;
+        ServiceMethodInvoker invoker = getInvoker(ois, serviceId, methodId, request);
+        invoker.validated = (validation != PostProtocol.VALIDATOR_NONE);
+        invoker.validator = validator;
+        invoker.requestBytes = in.getPosition() - start;
+        request.addInvoker(invoker);
+    }
+
+    /**
+     * Validates the number of calls in a batch.
+     */
+    protected int checkBatchSize (int count)
+        throws PostException
+    {
+        if (count < 1 || count > MAX_BATCH_CALLS) {
+            log.warning("Invalid batch size", "count", count);
+            throw new PostException(PostCodes.STREAMING_ERROR);
+        }
+        return count;
+    }
+
+    /**
+     * Abandons a request whose client has already given up on it, before we spend any more time
+     * decoding its args.
+     */
+    protected void checkDeadline (PostRequest request)
+        throws PostException
+    {
+        if (request.isExpired()) {
+            _metrics.recordExpired();
+            throw new PostException(PostCodes.DEADLINE_EXCEEDED);
+        }
+    }
+
+    /**
+     * Reads the args of a single call to the given service method, decoding them with the
+     * service's codec if the request is typed.
+     */
+    protected ServiceMethodInvoker getInvoker (ObjectInputStream ois, int serviceId, int methodId,
+                                               PostRequest request)
+        throws Exception
+    {
         PostDispatcher dispatcher = _dispatchers.get(serviceId);
         if (dispatcher == null) {
             log.warning("Dispatcher not found for service", "serviceId", serviceId);
             throw new PostException(PostCodes.STREAMING_ERROR);
         }
+        if (request.typed && !(dispatcher instanceof CodecDispatcher)) {
+            log.warning("Typed call to a service without typed codecs", "serviceId", serviceId);
+            throw new PostException(PostCodes.STREAMING_ERROR);
+        }
+
+        Object[] args;
+        try {
+            args = request.typed ?
+                ((CodecDispatcher)dispatcher).decodeArgs(methodId, ois) :
+                (Object[]) ois.readObject();
+        } catch (Exception e) {
+            log.warning("Exception encountered streaming the args", "serviceId", serviceId,
+                "methodId", methodId, e);
+            throw new PostException(PostCodes.STREAMING_ERROR);
+        }
 
         if (_injector != null) {
             // Inject members into the args that were streamed over the wire, only if we're running
             // in a Guice environment (_injector will be null otherwise)
             for (Object arg : args) {
-                if (arg != null) {
-                    _injector.injectMembers(arg);
-                }
+                injectMembers(arg);
             }
         }
 
-        return new ServiceMethodInvoker(dispatcher, serviceId, methodId, args, authCode);
+        return new ServiceMethodInvoker(dispatcher, serviceId, methodId, args, request.authCode);
+    }
+
+    /**
+     * Reads a single call in the original format, header and all. Requests are no longer read
+     * through here, so this is final to make a subclass that still overrides it fail to compile
+     * rather than be silently ignored; override {@link #getInvoker(ObjectInputStream, int, int,
+     * PostRequest)} instead.
+     *
+     * @deprecated Use {@link #readRequest}, which handles every request format.
+     */
+    @Deprecated
+    protected final ServiceMethodInvoker getInvoker (ObjectInputStream ois)
+        throws Exception
+    {
+        PostRequest request = new PostRequest();
+        int serviceId;
+        int methodId;
+        try {
+            String version = ois.readUTF();
+            if (!Objects.equal(_clientVersion, version)) {
+                log.warning("Version mismatch from client", "required", _clientVersion,
+                    "supplied", version);
+                throw new PostException(PostCodes.VERSION_MISMATCH);
+            }
+            if (_authLocal != null) {
+                request.authCode = ois.readUTF();
+            }
+            serviceId = ois.readInt();
+            methodId = ois.readInt();
+        } catch (IOException ioe) {
+            log.warning("Exception encountered streaming the pre-args values", ioe);
+            throw new PostException(PostCodes.STREAMING_ERROR);
+        }
+        return getInvoker(ois, serviceId, methodId, request);
+    }
+
+    /**
+     * Injects the members of an arg, if its class has any.
+     */
+    @SuppressWarnings("unchecked")
+    protected void injectMembers (Object arg)
+    {
+        if (arg == null) {
+            return;
+        }
+        MembersInjector<Object> injector =
+            (MembersInjector<Object>)getMembersInjector(arg.getClass());
+        if (injector != NO_INJECTION) {
+            injector.injectMembers(arg);
+        }
+    }
+
+    /**
+     * Returns the injector for members of the given class, or {@link #NO_INJECTION} if it has
+     * none, looking it up only the first time the class is seen.
+     */
+    protected MembersInjector<?> getMembersInjector (Class<?> clazz)
+    {
+        MembersInjector<?> injector = _membersInjectors.get(clazz);
+        if (injector == null) {
+            // most args are strings, boxed primitives and plain data, with nothing to inject
+            if (clazz.isArray() || clazz.isPrimitive() ||
+                    InjectionPoint.forInstanceMethodsAndFields(clazz).isEmpty()) {
+                injector = NO_INJECTION;
+            } else {
+                injector = _injector.getMembersInjector(clazz);
+            }
+            _membersInjectors.put(clazz, injector);
+        }
+        return injector;
+    }
+
+    /**
+     * Encodes the result of a call, with its dispatcher's codec if the call was typed.
+     */
+    protected void sendResult (ServiceMethodInvoker invoker, Object result, ObjectOutputStream oos)
+        throws IOException
+    {
+        ClassDictionary dictionary = invoker.getDictionary();
+        if (dictionary != null) {
+            dictionary.seed(oos);
+        }
+        if (invoker.isTyped()) {
+            oos.writeByte(PostProtocol.TYPED_RESULT);
+            ((CodecDispatcher)invoker.dispatcher).encodeResult(invoker.methodId, result, oos);
+        } else {
+            sendResult(result, oos);
+        }
     }
 
     protected void sendResult (Object result, ObjectOutputStream oos)
@@ -243,6 +1018,23 @@ public class PostManager
         log.error("doServiceCall failure in " + methodName, e);
     }
 
+    /**
+     * Encodes an error in place of the result of a call, marked as such if the call was typed.
+     */
+    protected void sendException (ServiceMethodInvoker invoker, Exception e,
+                                  ObjectOutputStream oos)
+        throws IOException
+    {
+        ClassDictionary dictionary = invoker.getDictionary();
+        if (dictionary != null) {
+            dictionary.seed(oos);
+        }
+        if (invoker.isTyped()) {
+            oos.writeByte(PostProtocol.TYPED_ERROR);
+        }
+        sendException(e, oos);
+    }
+
     protected void sendException (Exception e, ObjectOutputStream oos)
             throws IOException
     {
@@ -257,6 +1049,24 @@ public class PostManager
         public final Object[] args;
         public final String authCode;
 
+        /** The number of bytes of the request taken up by this call. */
+        public long requestBytes;
+
+        /** The number of bytes in this call's encoded, uncompressed result. */
+        public long responseBytes;
+
+        /** The request in which this call arrived. */
+        public PostRequest request;
+
+        /** Whether the client wants this call's result preceded by its validator. */
+        public boolean validated;
+
+        /** The validator of the client's cached result of this call, or null if it has none. */
+        public Long validator;
+
+        /** The nanoseconds the method took to run, or -1 if it hasn't been run for this call. */
+        public long invokeNanos = -1;
+
         public ServiceMethodInvoker (PostDispatcher dispatcher, int serviceId, int methodId,
             Object[] args, String authCode)
         {
@@ -270,19 +1080,186 @@ public class PostManager
         public Object invoke ()
             throws Exception
         {
-            return dispatcher.dispatchRequest(methodId, args);
+            long start = System.nanoTime();
+            try {
+                return dispatcher.dispatchRequest(methodId, args);
+            } finally {
+                invokeNanos = System.nanoTime() - start;
+            }
         }
 
         public String getMethodName ()
         {
             return dispatcher.getMethodName(methodId);
         }
+
+        /**
+         * Returns the policy for the method being called, or null if it has none.
+         */
+        public MethodPolicy getPolicy ()
+        {
+            return (dispatcher instanceof PolicyDispatcher) ?
+                ((PolicyDispatcher)dispatcher).getMethodPolicy(methodId) : null;
+        }
+
+        /**
+         * Returns true if this call's args and result are encoded by its dispatcher's codec.
+         */
+        public boolean isTyped ()
+        {
+            return request != null && request.typed;
+        }
+
+        /**
+         * Returns the class dictionary with which this call's result is streamed, or null.
+         */
+        public ClassDictionary getDictionary ()
+        {
+            return (request == null) ? null : request.dictionary;
+        }
+    }
+
+    /**
+     * A call in progress whose result identical calls are waiting to share.
+     */
+    protected static class CallFlight
+    {
+        /** The encoded result of the call, if it succeeded. */
+        public volatile byte[] result;
+
+        /** The exception thrown by the call, if it failed. */
+        public volatile Exception error;
+
+        /**
+         * Waits up to the given time for the call to finish and returns its encoded result, or
+         * null if it didn't finish in time.
+         *
+         * @throws PostException if the call failed. The original exception is only logged and
+         * counted once, by the call that threw it.
+         */
+        public byte[] await (long nanos)
+            throws Exception
+        {
+            if (!_done.await(nanos, TimeUnit.NANOSECONDS)) {
+                return null;
+            }
+            if (error instanceof PostException) {
+                throw error;
+            } else if (result == null) {
+                throw new PostException(error == null ? null : error.getMessage());
+            }
+            return result;
+        }
+
+        public void complete ()
+        {
+            _done.countDown();
+        }
+
+        protected final CountDownLatch _done = new CountDownLatch(1);
+    }
+
+    /** The header and calls read from a single request. */
+    protected static class PostRequest
+    {
+        public String authCode;
+
+        /** Where the auth code starts in the request body, or -1 if it has none. */
+        public int authOffset = -1;
+
+        /** The number of bytes of the request body taken up by the auth code. */
+        public int authLength;
+
+        public boolean batch;
+        public boolean compact;
+        public boolean typed;
+        public boolean validators;
+        public ClassDictionary dictionary;
+        public List<ServiceMethodInvoker> invokers = Lists.newArrayList();
+
+        /** The value of {@link System#nanoTime} when we started reading this request. */
+        public long received;
+
+        /** The number of milliseconds the client will wait for a response, or 0 for no limit. */
+        public int timeout;
+
+        public void addInvoker (ServiceMethodInvoker invoker)
+        {
+            invoker.request = this;
+            invokers.add(invoker);
+        }
+
+        /**
+         * Returns true if the client's timeout for this request has passed.
+         */
+        public boolean isExpired ()
+        {
+            return timeout > 0 && System.nanoTime() - received > timeout * 1000000L;
+        }
+
+        /**
+         * Returns the nanoseconds left before the client's timeout for this request passes, which
+         * may be negative if it has, or {@link Long#MAX_VALUE} if there is no timeout.
+         */
+        public long getRemainingNanos ()
+        {
+            return (timeout > 0) ? timeout * 1000000L - (System.nanoTime() - received) :
+                Long.MAX_VALUE;
+        }
     }
 
     protected Map<Integer, PostDispatcher> _dispatchers;
     protected String _clientVersion;
+    protected int _versionToken;
     protected ThreadLocal<String> _authLocal;
+    protected int _maxRequestBytes;
+    protected PostMetrics _metrics = new PostMetrics();
+    protected int _compressionThreshold;
+    protected volatile ConcurrencyLimiter _limiter;
+    protected volatile RateLimiter _rateLimiter;
+    protected volatile AuthVerifier _authVerifier;
+    protected volatile TrafficCapture _capture;
+    protected volatile long _maxCoalescedWait = DEFAULT_MAX_COALESCED_WAIT;
+    protected volatile ClassDictionary _dictionary;
+    protected ConcurrentMap<Long, ResultCache> _resultCaches =
+        new ConcurrentHashMap<Long, ResultCache>();
+    protected ConcurrentMap<CallKey, CallFlight> _flights =
+        new ConcurrentHashMap<CallKey, CallFlight>();
+    protected DeflaterPool _deflaters = new DeflaterPool(Deflater.BEST_SPEED, MAX_POOLED_BUFFERS);
+
+    /** Read buffers shared by all in-progress requests. */
+    protected BufferPool _readBuffers = new BufferPool(READ_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+
+    /** Buffers into which responses are encoded before being written out. */
+    protected EncodingBuffer.Pool _responseBuffers = new EncodingBuffer.Pool(
+        RESPONSE_BUFFER_SIZE, MAX_RETAINED_RESPONSE_BUFFER_SIZE, MAX_POOLED_BUFFERS);
 
     @Inject
     protected Injector _injector;
+
+    /** The injectors for members of the classes of args we've seen. */
+    protected final ConcurrentMap<Class<?>, MembersInjector<?>> _membersInjectors =
+        new ConcurrentHashMap<Class<?>, MembersInjector<?>>();
+
+    /** Marks classes that have no members to inject. */
+    protected static final MembersInjector<Object> NO_INJECTION = new MembersInjector<Object>() {
+        public void injectMembers (Object instance) {
+            // nothing doing
+        }
+    };
+
+    /** The size of the chunks in which request bodies are read. */
+    protected static final int READ_BUFFER_SIZE = 4096;
+
+    /** The maximum number of calls that may be sent in a single batch. */
+    protected static final int MAX_BATCH_CALLS = 1024;
+
+    /** The initial size of the buffers into which responses are encoded. */
+    protected static final int RESPONSE_BUFFER_SIZE = 1024;
+
+    /** Response buffers that grow beyond this size are dropped rather than pooled. */
+    protected static final int MAX_RETAINED_RESPONSE_BUFFER_SIZE = 64 * 1024;
+
+    /** The maximum number of idle buffers of each kind retained between requests. */
+    protected static final int MAX_POOLED_BUFFERS = 128;
 }
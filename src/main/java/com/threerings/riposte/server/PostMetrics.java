@@ -0,0 +1,178 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.io.PrintWriter;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import com.google.common.collect.Lists;
+
+import static com.threerings.riposte.Log.log;
+
+/**
+ * A registry of {@link MethodMetrics}, keyed by service id and method id, which {@link PostManager}
+ * updates as it handles calls. The registry may be exported to JMX, in which case every method
+ * that receives a call is registered as an MBean, and may be dumped as text by
+ * {@link RiposteServlet}.<br/><br/>
+ *
+ * Method ids come straight from clients, so calls to methods that their service doesn't have are
+ * all counted together in {@link #getUnknownMethods}, as are calls to any methods beyond the
+ * first {@link #MAX_METHODS}, rather than letting clients grow the registry without bound.
+ */
+public class PostMetrics
+{
+    /** The JMX domain under which method MBeans are registered. */
+    public static final String JMX_DOMAIN = "com.threerings.riposte";
+
+    /** The most methods whose calls are counted separately. */
+    public static final int MAX_METHODS = 1024;
+
+    /**
+     * Returns the metrics for the given method, creating them if this is the method's first call.
+     * Callers should only pass methods known to exist.
+     *
+     * @param methodName Used to name the method if its metrics must be created.
+     */
+    public MethodMetrics getMethod (int serviceId, int methodId, String methodName)
+    {
+        Long key = CallKey.methodKey(serviceId, methodId);
+        MethodMetrics metrics = _methods.get(key);
+        if (metrics == null) {
+            // the size check is racy, so the limit may be passed by a few methods at most
+            if (_methods.size() >= MAX_METHODS) {
+                return _unknown;
+            }
+            MethodMetrics created = new MethodMetrics(serviceId, methodId, methodName);
+            metrics = _methods.putIfAbsent(key, created);
+            if (metrics == null) {
+                metrics = created;
+                export(metrics);
+            }
+        }
+        return metrics;
+    }
+
+    /**
+     * Returns the metrics shared by calls to methods that don't exist, or that came after the
+     * registry was full.
+     */
+    public MethodMetrics getUnknownMethods ()
+    {
+        return _unknown;
+    }
+
+    /**
+     * Records that a request was abandoned before its calls were decoded, because its client's
+     * timeout had passed.
+     */
+    public void recordExpired ()
+    {
+        _expired.incrementAndGet();
+    }
+
+    /**
+     * Returns the number of requests abandoned before their calls were decoded.
+     */
+    public long getExpiredRequests ()
+    {
+        return _expired.get();
+    }
+
+    /**
+     * Returns the metrics of every method that has received a call.
+     */
+    public Collection<MethodMetrics> getMethods ()
+    {
+        return _methods.values();
+    }
+
+    /**
+     * Registers an MBean for every method that has received or subsequently receives a call, and
+     * for the calls to unknown methods, with the given server, usually
+     * {@link java.lang.management.ManagementFactory#getPlatformMBeanServer}.
+     */
+    public synchronized void exportTo (MBeanServer server)
+    {
+        _server = server;
+        export(_unknown);
+        for (MethodMetrics metrics : _methods.values()) {
+            export(metrics);
+        }
+    }
+
+    /**
+     * Writes a line of statistics for each method, with latencies in microseconds.
+     */
+    public void writeStats (PrintWriter out)
+    {
+        List<MethodMetrics> methods = Lists.newArrayList(_methods.values());
+        if (_unknown.getCalls() > 0) {
+            methods.add(_unknown);
+        }
+        out.println("method\tcalls\tpost_errors\tother_errors\trate_limited\texpired\t" +
+            "cache_hits\tnot_modified\tcoalesced\treq_bytes\trsp_bytes\tcompression\t" +
+            "mean_us\tp50_us\tp90_us\tp99_us\tmax_us");
+        for (MethodMetrics metrics : methods) {
+            out.println(metrics.getMethodName() + "\t" + metrics.getCalls() + "\t" +
+                metrics.getPostExceptions() + "\t" + metrics.getOtherExceptions() + "\t" +
+                metrics.getRateLimitedCalls() + "\t" + metrics.getExpiredCalls() + "\t" +
+                metrics.getCacheHits() + "\t" + metrics.getNotModifiedCalls() + "\t" +
+                metrics.getCoalescedCalls() + "\t" +
+                metrics.getRequestBytes() + "\t" + metrics.getResponseBytes() + "\t" +
+                String.format("%.2f", metrics.getCompressionRatio()) + "\t" +
+                metrics.getMeanLatencyMicros() + "\t" + metrics.getMedianLatencyMicros() + "\t" +
+                metrics.get90thLatencyMicros() + "\t" + metrics.get99thLatencyMicros() + "\t" +
+                metrics.getMaxLatencyMicros());
+        }
+        out.println("requests expired before decoding: " + getExpiredRequests());
+    }
+
+    protected synchronized void export (MethodMetrics metrics)
+    {
+        if (_server == null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(JMX_DOMAIN + ":type=ServiceMethod,service=" +
+                metrics.serviceId + ",method=" + ObjectName.quote(metrics.getMethodName()));
+            if (!_server.isRegistered(name)) {
+                _server.registerMBean(metrics, name);
+            }
+        } catch (Exception e) {
+            log.warning("Unable to register method metrics with JMX",
+                "method", metrics.getMethodName(), e);
+        }
+    }
+
+    protected final ConcurrentMap<Long, MethodMetrics> _methods =
+        new ConcurrentHashMap<Long, MethodMetrics>();
+    protected final MethodMetrics _unknown = new MethodMetrics(-1, -1, "[unknown method]");
+    protected final AtomicLong _expired = new AtomicLong();
+    protected MBeanServer _server;
+}
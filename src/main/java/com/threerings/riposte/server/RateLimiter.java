@@ -0,0 +1,185 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits the rate at which each caller, identified by its auth code, may make calls, using a
+ * token bucket per caller. Buckets are spread across a fixed number of independently locked
+ * stripes so that callers with different keys rarely contend, and each stripe holds a bounded
+ * number of buckets, evicting those that have sat idle or, failing that, the least recently used.
+ * An evicted bucket was necessarily full or nearly so, so forgetting it costs the caller nothing.
+ */
+public class RateLimiter
+{
+    /**
+     * @param permitsPerSecond The rate at which each caller's bucket refills.
+     * @param burst The capacity of each caller's bucket, which is the number of calls a caller
+     * that has been idle may make at once.
+     */
+    public RateLimiter (double permitsPerSecond, int burst)
+    {
+        this(permitsPerSecond, burst, DEFAULT_MAX_KEYS, DEFAULT_STRIPES);
+    }
+
+    /**
+     * @param maxKeys The number of callers for which buckets are retained.
+     * @param stripes The number of independently locked sections into which buckets are divided,
+     * rounded up to a power of two.
+     */
+    public RateLimiter (double permitsPerSecond, int burst, int maxKeys, int stripes)
+    {
+        _nanosPerPermit = (long)(1000000000L / Math.max(permitsPerSecond, 0.001));
+        _burst = Math.max(1, burst);
+        // once a bucket has been idle long enough to refill, it is indistinguishable from new
+        _idleNanos = _nanosPerPermit * _burst;
+
+        int count = 1;
+        while (count < stripes) {
+            count <<= 1;
+        }
+        _stripes = new Stripe[count];
+        int perStripe = Math.max(1, maxKeys / count);
+        for (int ii = 0; ii < count; ii++) {
+            _stripes[ii] = new Stripe(perStripe);
+        }
+    }
+
+    /**
+     * Takes a permit from the given caller's bucket.
+     *
+     * @return true if the call may proceed, or false if the caller has exceeded its rate.
+     */
+    public boolean tryAcquire (String key)
+    {
+        int hash = key.hashCode();
+        // spread the hash so that keys differing only in their high bits land in different stripes
+        hash ^= (hash >>> 16);
+        Stripe stripe = _stripes[hash & (_stripes.length - 1)];
+        if (stripe.tryAcquire(key, System.nanoTime())) {
+            return true;
+        }
+        _rejected.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Returns the number of callers for which buckets are currently held.
+     */
+    public int getKeyCount ()
+    {
+        int count = 0;
+        for (Stripe stripe : _stripes) {
+            count += stripe.size();
+        }
+        return count;
+    }
+
+    /**
+     * Returns the number of calls that have been refused.
+     */
+    public long getRejected ()
+    {
+        return _rejected.get();
+    }
+
+    /** A caller's bucket. Rather than counting tokens, we track the time at which the bucket will
+     * next be full, which makes refilling implicit. */
+    protected static class Bucket
+    {
+        public long fullAt;
+    }
+
+    /** A bounded, access ordered section of the bucket table. */
+    protected class Stripe extends LinkedHashMap<String, Bucket>
+    {
+        public Stripe (int maxKeys)
+        {
+            super(16, 0.75f, true);
+            _maxKeys = maxKeys;
+        }
+
+        public synchronized boolean tryAcquire (String key, long now)
+        {
+            Bucket bucket = get(key);
+            if (bucket == null) {
+                evictIdle(now);
+                bucket = new Bucket();
+                bucket.fullAt = now;
+                put(key, bucket);
+            }
+
+            // an empty bucket is full again _burst permits after now, so one with room for a
+            // permit will be full again less than that
+            long fullAt = Math.max(bucket.fullAt, now) + _nanosPerPermit;
+            if (fullAt - now > _idleNanos) {
+                return false;
+            }
+            bucket.fullAt = fullAt;
+            return true;
+        }
+
+        @Override // documentation inherited
+        public synchronized int size ()
+        {
+            return super.size();
+        }
+
+        /**
+         * Drops buckets that have refilled, oldest first. Since the map is in access order, we can
+         * stop at the first bucket still refilling.
+         */
+        protected void evictIdle (long now)
+        {
+            for (Iterator<Bucket> it = values().iterator(); it.hasNext(); ) {
+                if (it.next().fullAt - now > 0) {
+                    break;
+                }
+                it.remove();
+            }
+        }
+
+        @Override // documentation inherited
+        protected boolean removeEldestEntry (Map.Entry<String, Bucket> eldest)
+        {
+            return size() > _maxKeys;
+        }
+
+        protected final int _maxKeys;
+    }
+
+    protected final long _nanosPerPermit;
+    protected final int _burst;
+    protected final long _idleNanos;
+    protected final Stripe[] _stripes;
+    protected final AtomicLong _rejected = new AtomicLong();
+
+    /** The default number of callers for which buckets are retained. */
+    protected static final int DEFAULT_MAX_KEYS = 64 * 1024;
+
+    /** The default number of stripes into which the buckets are divided. */
+    protected static final int DEFAULT_STRIPES = 64;
+}
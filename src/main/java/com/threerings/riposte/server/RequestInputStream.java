@@ -0,0 +1,191 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.threerings.riposte.data.BufferPool;
+
+/**
+ * Reads a request body directly from the servlet's input stream through a pair of pooled
+ * buffers, so that the body never needs to be copied into a single array before it is decoded.
+ * The total number of bytes read may be capped, and the most recently consumed bytes remain
+ * available via {@link #getTail} so that a streaming failure can still be logged with the data
+ * that caused it.
+ */
+public class RequestInputStream extends InputStream
+{
+    /**
+     * Creates a stream reading from the given source.
+     *
+     * @param source The raw request stream.
+     * @param pool The pool from which our read buffers are taken.
+     * @param maxBytes The maximum number of bytes that may be read from the source before the
+     *                 request is treated as a streaming failure, or 0 for no limit.
+     */
+    public RequestInputStream (InputStream source, BufferPool pool, int maxBytes)
+    {
+        _source = source;
+        _pool = pool;
+        _maxBytes = maxBytes;
+        _buf = pool.acquire();
+        _prev = pool.acquire();
+    }
+
+    /**
+     * Returns the number of bytes read from the source so far.
+     */
+    public long getCount ()
+    {
+        return _count;
+    }
+
+    /**
+     * Returns the number of bytes consumed from this stream so far.
+     */
+    public long getPosition ()
+    {
+        return _count - (_limit - _pos);
+    }
+
+    /**
+     * Returns up to the last two buffers' worth of bytes consumed from this stream.
+     */
+    public byte[] getTail ()
+    {
+        if (_buf == null) {
+            return new byte[0];
+        }
+        byte[] tail = new byte[_prevLength + _pos];
+        System.arraycopy(_prev, 0, tail, 0, _prevLength);
+        System.arraycopy(_buf, 0, tail, _prevLength, _pos);
+        return tail;
+    }
+
+    /**
+     * Returns the next byte without consuming it, or -1 at the end of the stream.
+     */
+    public int peek ()
+        throws IOException
+    {
+        if (_pos >= _limit && !fill()) {
+            return -1;
+        }
+        return _buf[_pos] & 0xFF;
+    }
+
+    @Override // from InputStream
+    public int read ()
+        throws IOException
+    {
+        if (_pos >= _limit && !fill()) {
+            return -1;
+        }
+        return _buf[_pos++] & 0xFF;
+    }
+
+    @Override // from InputStream
+    public int read (byte[] b, int off, int len)
+        throws IOException
+    {
+        if (len == 0) {
+            return 0;
+        }
+        if (_pos >= _limit && !fill()) {
+            return -1;
+        }
+        int count = Math.min(len, _limit - _pos);
+        System.arraycopy(_buf, _pos, b, off, count);
+        _pos += count;
+        return count;
+    }
+
+    @Override // from InputStream
+    public int available ()
+        throws IOException
+    {
+        if (_buf == null) {
+            return 0;
+        }
+        return (_limit - _pos) + _source.available();
+    }
+
+    /**
+     * Closes the source stream and returns our buffers to the pool.
+     */
+    @Override // from InputStream
+    public void close ()
+        throws IOException
+    {
+        if (_buf != null) {
+            _pool.release(_buf);
+            _pool.release(_prev);
+            _buf = _prev = null;
+            _pos = _limit = _prevLength = 0;
+        }
+        _source.close();
+    }
+
+    /**
+     * Reads the next chunk from the source, retaining the chunk just consumed as part of the tail.
+     *
+     * @return false if the source is exhausted.
+     */
+    protected boolean fill ()
+        throws IOException
+    {
+        if (_buf == null) {
+            throw new IOException("Stream closed");
+        }
+        if (_eof) {
+            return false;
+        }
+        byte[] consumed = _buf;
+        _buf = _prev;
+        _prev = consumed;
+        _prevLength = _limit;
+        _pos = _limit = 0;
+
+        int count = _source.read(_buf, 0, _buf.length);
+        if (count <= 0) {
+            _eof = true;
+            return false;
+        }
+        _count += count;
+        if (_maxBytes > 0 && _count > _maxBytes) {
+            throw new IOException("Request exceeded maximum size [max=" + _maxBytes + "]");
+        }
+        _limit = count;
+        return true;
+    }
+
+    protected InputStream _source;
+    protected BufferPool _pool;
+    protected int _maxBytes;
+    protected long _count;
+    protected boolean _eof;
+
+    /** The buffer we're reading from, and the one we read from before it. */
+    protected byte[] _buf, _prev;
+    protected int _pos, _limit, _prevLength;
+}
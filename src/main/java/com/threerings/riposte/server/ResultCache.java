@@ -0,0 +1,85 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A bounded, least recently used cache of encoded results for a single service method, each of
+ * which expires a fixed time after it was stored.
+ */
+public class ResultCache
+{
+    public ResultCache (long ttl, int maxEntries)
+    {
+        _ttl = ttl;
+        _maxEntries = maxEntries;
+    }
+
+    /**
+     * Returns the encoded result stored for the given call, or null if there is none or it has
+     * expired.
+     */
+    public synchronized byte[] get (CallKey key)
+    {
+        Entry entry = _entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (entry.expires < System.currentTimeMillis()) {
+            _entries.remove(key);
+            return null;
+        }
+        return entry.result;
+    }
+
+    /**
+     * Stores the encoded result of a call, evicting the least recently used result if the cache
+     * is full.
+     */
+    public synchronized void put (CallKey key, byte[] result)
+    {
+        _entries.put(key, new Entry(result, System.currentTimeMillis() + _ttl));
+    }
+
+    protected static class Entry
+    {
+        public final byte[] result;
+        public final long expires;
+
+        public Entry (byte[] result, long expires)
+        {
+            this.result = result;
+            this.expires = expires;
+        }
+    }
+
+    protected final long _ttl;
+    protected final int _maxEntries;
+    protected final LinkedHashMap<CallKey, Entry> _entries =
+        new LinkedHashMap<CallKey, Entry>(16, 0.75f, true) {
+            @Override protected boolean removeEldestEntry (Map.Entry<CallKey, Entry> eldest) {
+                return size() > _maxEntries;
+            }
+        };
+}
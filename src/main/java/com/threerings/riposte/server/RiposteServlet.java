@@ -5,6 +5,7 @@ import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import java.io.IOException;
+import java.io.PrintWriter;
 
 import com.google.inject.Inject;
 import com.google.inject.Singleton;
@@ -17,9 +18,27 @@ public class RiposteServlet extends HttpServlet
         _manager = manager;
     }
 
+    /**
+     * Enables a plain text dump of the manager's {@link PostMetrics}, served in response to GET
+     * requests for the given path within this servlet, e.g. "/stats". The dump is disabled by
+     * default.
+     */
+    public void setStatsPath (String statsPath)
+    {
+        _statsPath = statsPath;
+    }
+
     @Override protected void doGet (HttpServletRequest req, HttpServletResponse resp)
         throws ServletException, IOException
     {
+        if (_statsPath != null && _statsPath.equals(req.getPathInfo())) {
+            resp.setContentType("text/plain");
+            PrintWriter out = resp.getWriter();
+            _manager.getMetrics().writeStats(out);
+            out.close();
+            return;
+        }
+
         // Requests without data will sometimes come in as GET, so handle both
         doPost(req, resp);
     }
@@ -31,4 +50,5 @@ public class RiposteServlet extends HttpServlet
     }
 
     protected PostManager _manager;
+    protected String _statsPath;
 }
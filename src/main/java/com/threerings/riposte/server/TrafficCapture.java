@@ -0,0 +1,530 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.server;
+
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import com.samskivert.util.StringUtil;
+
+import static com.threerings.riposte.Log.log;
+
+/**
+ * Records a sample of the requests received by a {@link PostManager}, for later replay with
+ * {@link com.threerings.riposte.tools.ReplayTraffic}. Each sampled request's uncompressed body is
+ * appended, along with when it arrived, how long it took and the size of its response, to a
+ * memory-mapped segment file. When a segment fills, a new one is started and the oldest beyond
+ * the configured number are deleted, so the capture occupies a bounded amount of disk.
+ *
+ * <p>Requests are written by a background thread, in the order in which they arrived rather than
+ * the order in which they were answered, so that they can be replayed at their original pace.
+ * Request handling threads only hand their records over. Auth codes are never written: each is
+ * replaced by a hash salted afresh for every capture, so that the callers in a capture can be
+ * told apart, but their codes can't be recovered. Replaying a capture against a server that
+ * checks auth codes will therefore fail those checks.
+ *
+ * <p>A segment starts with {@link #MAGIC} and {@link #FORMAT_VERSION} as ints, followed by
+ * records, each of which is the int length of the body, the long arrival time in milliseconds,
+ * the long handling time in nanoseconds, the int size of the response, and the body. A zero
+ * length marks the end of the segment.
+ */
+public class TrafficCapture
+{
+    /** A request read back from a capture. */
+    public static class Record
+    {
+        /** When the request arrived, in milliseconds since the epoch. */
+        public long timestamp;
+
+        /** How long the request took to handle, in nanoseconds. */
+        public long nanos;
+
+        /** The number of bytes in the uncompressed response. */
+        public int responseBytes;
+
+        /** The uncompressed request body. */
+        public byte[] request;
+    }
+
+    /**
+     * Reads back the records of a capture, oldest first.
+     */
+    public static class Reader
+    {
+        public Reader (File dir)
+        {
+            _segments = listSegments(dir);
+        }
+
+        /**
+         * Returns the next record, or null if there are no more.
+         */
+        public Record next ()
+            throws IOException
+        {
+            while (true) {
+                if (_buffer == null) {
+                    if (_segments.isEmpty()) {
+                        return null;
+                    }
+                    _buffer = map(_segments.remove(0), FileChannel.MapMode.READ_ONLY, 0);
+                    if (_buffer.getInt() != MAGIC || _buffer.getInt() != FORMAT_VERSION) {
+                        throw new IOException("Not a Riposte traffic capture");
+                    }
+                }
+                try {
+                    int length = _buffer.remaining() < RECORD_HEADER_SIZE ? 0 : _buffer.getInt();
+                    if (length > 0) {
+                        Record record = new Record();
+                        record.timestamp = _buffer.getLong();
+                        record.nanos = _buffer.getLong();
+                        record.responseBytes = _buffer.getInt();
+                        record.request = new byte[length];
+                        _buffer.get(record.request);
+                        return record;
+                    }
+                } catch (BufferUnderflowException bue) {
+                    // a record cut short by a crash; treat it as the end of the segment
+                }
+                _buffer = null;
+            }
+        }
+
+        protected List<File> _segments;
+        protected MappedByteBuffer _buffer;
+    }
+
+    /**
+     * Copies everything read from a stream to another stream.
+     */
+    public static class TeeInputStream extends FilterInputStream
+    {
+        public TeeInputStream (InputStream in, OutputStream copy)
+        {
+            super(in);
+            _copy = copy;
+        }
+
+        @Override // documentation inherited
+        public int read ()
+            throws IOException
+        {
+            int b = super.read();
+            if (b != -1) {
+                _copy.write(b);
+            }
+            return b;
+        }
+
+        @Override // documentation inherited
+        public int read (byte[] b, int off, int len)
+            throws IOException
+        {
+            int read = super.read(b, off, len);
+            if (read > 0) {
+                _copy.write(b, off, read);
+            }
+            return read;
+        }
+
+        @Override // documentation inherited
+        public long skip (long n)
+            throws IOException
+        {
+            // read rather than skip, so that the skipped bytes are copied
+            byte[] buf = new byte[(int)Math.min(n, 1024)];
+            int read = read(buf, 0, buf.length);
+            return Math.max(read, 0);
+        }
+
+        @Override // documentation inherited
+        public boolean markSupported ()
+        {
+            return false;
+        }
+
+        protected OutputStream _copy;
+    }
+
+    /**
+     * @param dir The directory in which to write segments. It is created if necessary.
+     * @param segmentSize The size of each segment, in bytes. Requests too large to fit in a
+     * segment are not captured.
+     * @param maxSegments The number of segments to keep.
+     * @param sampleEvery Capture one in this many requests.
+     */
+    public TrafficCapture (File dir, int segmentSize, int maxSegments, int sampleEvery)
+        throws IOException
+    {
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("Unable to create capture directory " + dir);
+        }
+        _dir = dir;
+        _segmentSize = Math.max(segmentSize, SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + 1);
+        _maxSegments = Math.max(1, maxSegments);
+        _sampleEvery = Math.max(1, sampleEvery);
+
+        // continue numbering from any segments left by an earlier capture
+        List<File> existing = listSegments(dir);
+        if (!existing.isEmpty()) {
+            String name = existing.get(existing.size() - 1).getName();
+            _sequence = Integer.parseInt(
+                name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+        }
+        rotate();
+        new SecureRandom().nextBytes(_salt);
+
+        _writer = new Thread("riposte-capture-writer") {
+            @Override public void run () {
+                writeRecords();
+            }
+        };
+        _writer.setDaemon(true);
+        _writer.start();
+    }
+
+    /**
+     * Decides whether the request being received should be captured.
+     *
+     * @return a ticket that must be passed to {@link #record} or {@link #skip} once the request
+     * has been handled, or -1 if it should not be captured.
+     */
+    public long startSample ()
+    {
+        if (_closed || _seen.incrementAndGet() % _sampleEvery != 0) {
+            return -1;
+        }
+        return _tickets.getAndIncrement();
+    }
+
+    /**
+     * Hands a sampled request to the capture's writer. The body is copied, with its auth code
+     * replaced by a salted hash, so the caller may reuse its buffer once this returns.
+     *
+     * @param ticket The ticket returned by {@link #startSample} when the request arrived.
+     * @param timestamp When the request arrived, in milliseconds since the epoch.
+     * @param nanos How long the request took to handle.
+     * @param responseBytes The size of the uncompressed response.
+     * @param authOffset The position within the body of the auth code, as written by
+     * {@link java.io.DataOutputStream#writeUTF}, or -1 if the request has none.
+     * @param authLength The number of bytes taken by the auth code, including its length.
+     */
+    public void record (long ticket, long timestamp, long nanos, int responseBytes,
+                        byte[] request, int offset, int length, int authOffset, int authLength)
+    {
+        if (_closed) {
+            return;
+        }
+        Record record = null;
+        if (length > 0) {
+            byte[] body = redact(request, offset, length, authOffset, authLength);
+            if (SEGMENT_HEADER_SIZE + RECORD_HEADER_SIZE + body.length > _segmentSize) {
+                _dropped.incrementAndGet();
+            } else if (_pendingBytes.addAndGet(body.length) > MAX_PENDING_BYTES) {
+                // the writer has fallen too far behind
+                _pendingBytes.addAndGet(-body.length);
+                _dropped.incrementAndGet();
+            } else {
+                record = new Record();
+                record.timestamp = timestamp;
+                record.nanos = nanos;
+                record.responseBytes = responseBytes;
+                record.request = body;
+            }
+        }
+        _pending.offer(new Pending(ticket, record));
+    }
+
+    /**
+     * Tells the writer that a sampled request won't be recorded, so that it doesn't hold back the
+     * requests that arrived after it.
+     */
+    public void skip (long ticket)
+    {
+        if (!_closed) {
+            _pending.offer(new Pending(ticket, null));
+        }
+    }
+
+    /**
+     * Returns the number of requests captured.
+     */
+    public long getCaptured ()
+    {
+        return _captured.get();
+    }
+
+    /**
+     * Returns the number of sampled requests that were too large to capture, or that arrived
+     * while the writer was too far behind.
+     */
+    public long getDropped ()
+    {
+        return _dropped.get();
+    }
+
+    /**
+     * Stops capturing, waits for the records already handed over to be written, and flushes the
+     * current segment to disk.
+     */
+    public void close ()
+    {
+        if (!_stopped.compareAndSet(false, true)) {
+            return;
+        }
+        _closed = true;
+        _pending.offer(CLOSE);
+        try {
+            _writer.join();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Copies a request body, replacing its auth code, if it has one, with a salted hash.
+     */
+    protected byte[] redact (byte[] request, int offset, int length, int authOffset,
+                             int authLength)
+    {
+        if (authOffset < 0 || authLength <= 0 || authOffset + authLength > length) {
+            byte[] body = new byte[length];
+            System.arraycopy(request, offset, body, 0, length);
+            return body;
+        }
+
+        byte[] token;
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            digest.update(_salt);
+            digest.update(request, offset + authOffset, authLength);
+            token = ("redacted-" + StringUtil.hexlate(digest.digest(), 8)).getBytes("UTF-8");
+        } catch (Exception e) {
+            // every JVM has SHA-1 and UTF-8, but if not, drop the code entirely
+            token = new byte[0];
+        }
+        byte[] body = new byte[length - authLength + 2 + token.length];
+        System.arraycopy(request, offset, body, 0, authOffset);
+        body[authOffset] = (byte)(token.length >>> 8);
+        body[authOffset + 1] = (byte)token.length;
+        System.arraycopy(token, 0, body, authOffset + 2, token.length);
+        System.arraycopy(request, offset + authOffset + authLength, body,
+            authOffset + 2 + token.length, length - authOffset - authLength);
+        return body;
+    }
+
+    /**
+     * Run by the writer thread: writes records as they are handed over, holding back any that
+     * arrived before a request still being handled.
+     */
+    protected void writeRecords ()
+    {
+        Map<Long, Record> waiting = Maps.newHashMap();
+        long next = 0;
+        while (true) {
+            Pending pending;
+            try {
+                pending = _pending.take();
+            } catch (InterruptedException ie) {
+                continue;
+            }
+            if (pending == CLOSE) {
+                break;
+            }
+            if (pending.ticket != next) {
+                waiting.put(pending.ticket, pending.record);
+                continue;
+            }
+            write(pending.record);
+            while (waiting.containsKey(++next)) {
+                write(waiting.remove(next));
+            }
+        }
+        if (_buffer != null) {
+            _buffer.force();
+        }
+    }
+
+    /**
+     * Appends a record to the current segment, starting a new one if it is full. Called only by
+     * the writer thread.
+     */
+    protected void write (Record record)
+    {
+        if (record == null) {
+            return;
+        }
+        _pendingBytes.addAndGet(-record.request.length);
+        if (_buffer == null) {
+            return;
+        }
+        try {
+            if (_buffer.remaining() < RECORD_HEADER_SIZE + record.request.length) {
+                rotate();
+            }
+            _buffer.putInt(record.request.length);
+            _buffer.putLong(record.timestamp);
+            _buffer.putLong(record.nanos);
+            _buffer.putInt(record.responseBytes);
+            _buffer.put(record.request);
+            _captured.incrementAndGet();
+
+        } catch (IOException ioe) {
+            log.warning("Failed to start a new traffic capture segment, stopping capture",
+                "dir", _dir, ioe);
+            _closed = true;
+            _buffer = null;
+        }
+    }
+
+    /** A record handed to the writer, or null in place of a request that won't be recorded. */
+    protected static class Pending
+    {
+        public final long ticket;
+        public final Record record;
+
+        public Pending (long ticket, Record record)
+        {
+            this.ticket = ticket;
+            this.record = record;
+        }
+    }
+
+    /**
+     * Flushes the current segment, maps a fresh one and deletes the oldest beyond our limit.
+     */
+    protected void rotate ()
+        throws IOException
+    {
+        if (_buffer != null) {
+            _buffer.force();
+        }
+        File segment = new File(_dir, String.format("%s%08d%s", SEGMENT_PREFIX, ++_sequence,
+            SEGMENT_SUFFIX));
+        _buffer = map(segment, FileChannel.MapMode.READ_WRITE, _segmentSize);
+        _buffer.putInt(MAGIC);
+        _buffer.putInt(FORMAT_VERSION);
+
+        List<File> segments = listSegments(_dir);
+        for (int ii = 0, nn = segments.size() - _maxSegments; ii < nn; ii++) {
+            if (!segments.get(ii).delete()) {
+                log.warning("Unable to delete old traffic capture segment",
+                    "segment", segments.get(ii));
+            }
+        }
+    }
+
+    /**
+     * Returns the segment files in the given directory, oldest first.
+     */
+    protected static List<File> listSegments (File dir)
+    {
+        List<File> segments = Lists.newArrayList();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            // the zero padded sequence numbers make name order creation order
+            Arrays.sort(files);
+            for (File file : files) {
+                String name = file.getName();
+                if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    segments.add(file);
+                }
+            }
+        }
+        return segments;
+    }
+
+    /**
+     * Maps a segment file into memory. The mapping outlives the file's channel.
+     *
+     * @param size The size to which to extend the file and map, or 0 to map it as it is.
+     */
+    protected static MappedByteBuffer map (File file, FileChannel.MapMode mode, int size)
+        throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(
+            file, mode == FileChannel.MapMode.READ_ONLY ? "r" : "rw");
+        try {
+            long length = (size > 0) ? size : raf.length();
+            return raf.getChannel().map(mode, 0, length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    protected final File _dir;
+    protected final int _segmentSize;
+    protected final int _maxSegments;
+    protected final int _sampleEvery;
+    protected final AtomicLong _seen = new AtomicLong();
+    protected final AtomicLong _tickets = new AtomicLong();
+    protected final AtomicLong _captured = new AtomicLong();
+    protected final AtomicLong _dropped = new AtomicLong();
+    protected final AtomicLong _pendingBytes = new AtomicLong();
+    protected final BlockingQueue<Pending> _pending = new LinkedBlockingQueue<Pending>();
+    protected final byte[] _salt = new byte[16];
+    protected Thread _writer;
+    protected int _sequence;
+    protected MappedByteBuffer _buffer;
+    protected volatile boolean _closed;
+    protected final AtomicBoolean _stopped = new AtomicBoolean();
+
+    /** Identifies a segment file. */
+    public static final int MAGIC = 0x52505443;
+
+    /** The version of the segment format. */
+    public static final int FORMAT_VERSION = 1;
+
+    /** Handed to the writer to tell it to stop. */
+    protected static final Pending CLOSE = new Pending(-1, null);
+
+    /** The most bytes of records that may wait to be written before further ones are dropped. */
+    protected static final long MAX_PENDING_BYTES = 16 * 1024 * 1024;
+
+    protected static final String SEGMENT_PREFIX = "riposte-capture-";
+    protected static final String SEGMENT_SUFFIX = ".log";
+
+    /** The bytes of magic and version at the start of each segment. */
+    protected static final int SEGMENT_HEADER_SIZE = 8;
+
+    /** The bytes of length, timestamp, handling time and response size before each body. */
+    protected static final int RECORD_HEADER_SIZE = 24;
+}
@@ -21,24 +21,51 @@
 package com.threerings.riposte.tools;
 
 import java.io.File;
+import java.io.IOException;
 import java.lang.reflect.Field;
+import java.lang.reflect.GenericArrayType;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.lang.reflect.ParameterizedType;
 import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
+import org.apache.tools.ant.BuildException;
+
+import com.google.common.base.Joiner;
 import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import com.samskivert.util.ComparableArrayList;
+import com.threerings.io.ObjectInputStream;
+import com.threerings.io.ObjectOutputStream;
+import com.threerings.io.Streamable;
 import com.threerings.presents.tools.GenUtil;
 import com.threerings.presents.tools.ImportSet;
 import com.threerings.presents.tools.InvocationTask;
 
+import com.threerings.riposte.data.CallCodec;
+import com.threerings.riposte.data.ClassDictionary;
+import com.threerings.riposte.data.Codecs;
+import com.threerings.riposte.data.Idempotent;
 import com.threerings.riposte.data.PostCodes;
-import com.threerings.riposte.server.PostDispatcher;
+import com.threerings.riposte.data.RevalidateResult;
+import com.threerings.riposte.data.StreamableError;
+import com.threerings.riposte.server.CacheResult;
+import com.threerings.riposte.server.CoalesceCalls;
+import com.threerings.riposte.server.CodecDispatcher;
+import com.threerings.riposte.server.MethodPolicy;
+import com.threerings.riposte.server.PolicyDispatcher;
 import com.threerings.riposte.server.PostException;
 
 /**
@@ -71,6 +98,106 @@ public class GenRiposteTask extends InvocationTask
                 "PostResultListener<" + GenUtil.simpleName(method.getGenericReturnType()) + ">";
         }
 
+        /**
+         * Returns true if the service method is annotated with anything that the dispatcher must
+         * describe in a {@link MethodPolicy}.
+         */
+        public boolean hasPolicy ()
+        {
+            return method.getAnnotation(CacheResult.class) != null ||
+                method.getAnnotation(CoalesceCalls.class) != null;
+        }
+
+        /**
+         * Returns the expression that constructs this method's {@link MethodPolicy}.
+         */
+        public String getPolicy ()
+        {
+            StringBuilder policy = new StringBuilder("new MethodPolicy()");
+            CacheResult cache = method.getAnnotation(CacheResult.class);
+            if (cache != null) {
+                policy.append(".cacheResults(").append(cache.ttl()).append("L, ")
+                    .append(cache.maxEntries()).append(", ").append(cache.shareAcrossAuth())
+                    .append(")");
+            }
+            CoalesceCalls coalesce = method.getAnnotation(CoalesceCalls.class);
+            if (coalesce != null) {
+                policy.append(".coalesceCalls(").append(coalesce.shareAcrossAuth()).append(")");
+            }
+            return policy.toString();
+        }
+
+        /**
+         * Returns true if the marshaller should tell the client more about calls to this method
+         * than their args, such as whether it may revalidate their results.
+         */
+        public boolean hasCallOptions ()
+        {
+            return method.getAnnotation(RevalidateResult.class) != null || isIdempotent();
+        }
+
+        /**
+         * Returns true if the client may send a call to this method more than once, as described
+         * by {@link Idempotent}.
+         */
+        public boolean isIdempotent ()
+        {
+            return method.getAnnotation(Idempotent.class) != null ||
+                method.getAnnotation(CacheResult.class) != null ||
+                method.getAnnotation(RevalidateResult.class) != null;
+        }
+
+        /**
+         * Returns the number of this method's results that the client should keep to revalidate.
+         */
+        public int getRevalidatedResults ()
+        {
+            RevalidateResult revalidate = method.getAnnotation(RevalidateResult.class);
+            return (revalidate == null) ? 0 : revalidate.maxEntries();
+        }
+
+        /**
+         * Returns the expressions, separated by commas, that read each of this method's args
+         * with a typed codec.
+         */
+        public String getArgDecoders ()
+        {
+            List<String> decoders = Lists.newArrayList();
+            for (Class<?> type : method.getParameterTypes()) {
+                decoders.add(readExpression(type));
+            }
+            return Joiner.on(", ").join(decoders);
+        }
+
+        /**
+         * Returns the statements that write each of this method's args with a typed codec.
+         */
+        public List<String> getArgEncoders ()
+        {
+            List<String> encoders = Lists.newArrayList();
+            Class<?>[] types = method.getParameterTypes();
+            for (int ii = 0; ii < types.length; ii++) {
+                encoders.add(writeStatement(types[ii], "args[" + ii + "]"));
+            }
+            return encoders;
+        }
+
+        /**
+         * Returns the statement that writes this method's result with a typed codec.
+         */
+        public String getResultEncoder ()
+        {
+            return returnsVoid() ? "" : writeStatement(method.getReturnType(), "result");
+        }
+
+        /**
+         * Returns the expression that reads this method's result with a typed codec.
+         */
+        public String getResultDecoder ()
+        {
+            return returnsVoid() ? "null" : readExpression(method.getReturnType());
+        }
+
         public boolean containsGenericParameters ()
         {
             return _parameterized.size() > 0;
@@ -104,6 +231,16 @@ public class GenRiposteTask extends InvocationTask
         protected List<Integer> _parameterized = Lists.newArrayList();
     }
 
+    /**
+     * Configures whether dispatchers and Java marshallers are generated with typed codecs, which
+     * encode args and results according to their declared types instead of streaming them as
+     * objects. Defaults to false.
+     */
+    public void setTypedcodecs (boolean typedcodecs)
+    {
+        _typedcodecs = typedcodecs;
+    }
+
     /**
      * Configures the path to our client source files.
      */
@@ -131,6 +268,35 @@ public class GenRiposteTask extends InvocationTask
         _clientlanguage = language;
     }
 
+    /**
+     * Configures the file to which to write a {@link ClassDictionary} of every class that the
+     * processed services may stream. Clients and servers that load the same dictionary stream
+     * those classes by short tokens rather than by name. By default no dictionary is written.
+     */
+    public void setDictionary (File dictionary)
+    {
+        _dictionary = dictionary;
+    }
+
+    @Override
+    public void execute ()
+    {
+        super.execute();
+        if (_dictionary != null) {
+            StringBuilder content = new StringBuilder();
+            content.append("# Classes streamed by Riposte services, generated by genriposte.\n");
+            content.append("# Clients and servers must load identical copies of this file.\n");
+            for (String name : _dictionaryClasses) {
+                content.append(name).append("\n");
+            }
+            try {
+                writeFile(_dictionary.getPath(), content.toString());
+            } catch (IOException ioe) {
+                throw new BuildException("Failed to write class dictionary " + _dictionary, ioe);
+            }
+        }
+    }
+
     @Override
     public void processClass (File source, Class<?> service)
         throws Exception
@@ -156,6 +322,12 @@ public class GenRiposteTask extends InvocationTask
         int serviceId = serviceIdField.getInt(null);
 
         ServiceDescription desc = new ServiceDescription(service, serviceId);
+        for (PostServiceMethod method : desc.methods) {
+            addDictionaryType(method.method.getGenericReturnType());
+            for (Type type : method.method.getGenericParameterTypes()) {
+                addDictionaryType(type);
+            }
+        }
         generateDispatcher(source, desc);
         generatePostService(source, desc);
         generateMarshaller(source, desc);
@@ -172,8 +344,17 @@ public class GenRiposteTask extends InvocationTask
         // add some classes required for all dispatchers
         imports.add("com.google.inject.Inject");
         imports.add(PostCodes.class);
-        imports.add(PostDispatcher.class);
+        imports.add(MethodPolicy.class);
         imports.add(PostException.class);
+        if (_typedcodecs) {
+            imports.add(CodecDispatcher.class);
+            imports.add(Codecs.class);
+            imports.add(IOException.class);
+            imports.add(ObjectInputStream.class);
+            imports.add(ObjectOutputStream.class);
+        } else {
+            imports.add(PolicyDispatcher.class);
+        }
 
         // import classes contained in arrays
         imports.translateClassArrays();
@@ -198,7 +379,8 @@ public class GenRiposteTask extends InvocationTask
                                        "name", name,
                                        "package", sdesc.spackage,
                                        "methods", sdesc.methods,
-                                       "imports", imports.toList()));
+                                       "imports", imports.toList(),
+                                       "typed", _typedcodecs));
     }
 
     protected void generatePostService (File source, ServiceDescription sdesc)
@@ -285,6 +467,15 @@ public class GenRiposteTask extends InvocationTask
         // remove imports in our own package
         imports.removeSamePackage(mpackage);
 
+        boolean typed = _typedcodecs && "java".equals(_clientlanguage);
+        if (typed) {
+            imports.add(CallCodec.class);
+            imports.add(Codecs.class);
+            imports.add(IOException.class);
+            imports.add(ObjectInputStream.class);
+            imports.add(ObjectOutputStream.class);
+        }
+
         // make sure our post service directory exists
         String spath = mpackage.replace('.', File.separatorChar);
         spath = spath.replace("/server/", "/data/");
@@ -299,7 +490,112 @@ public class GenRiposteTask extends InvocationTask
                                         "methods", sdesc.methods,
                                         "imports", imports.toList(),
                                         "spackage", spackage,
-                                        "serviceId", sdesc.serviceId));
+                                        "serviceId", sdesc.serviceId,
+                                        "typed", typed));
+    }
+
+    /**
+     * Adds the classes that may be streamed for a value of the given type to the dictionary.
+     */
+    protected void addDictionaryType (Type type)
+    {
+        if (type instanceof ParameterizedType) {
+            ParameterizedType ptype = (ParameterizedType)type;
+            addDictionaryType(ptype.getRawType());
+            for (Type arg : ptype.getActualTypeArguments()) {
+                addDictionaryType(arg);
+            }
+        } else if (type instanceof GenericArrayType) {
+            addDictionaryType(((GenericArrayType)type).getGenericComponentType());
+        } else if (type instanceof Class<?>) {
+            addDictionaryClass((Class<?>)type);
+        }
+        // type variables and wildcards name no class of their own
+    }
+
+    /**
+     * Adds the given class to the dictionary, along with the classes of its streamed fields.
+     */
+    protected void addDictionaryClass (Class<?> clazz)
+    {
+        if (clazz == Void.TYPE || clazz == Object.class) {
+            return;
+        }
+        if (clazz.isPrimitive()) {
+            // args are boxed when streamed as objects
+            clazz = BOXES.get(clazz);
+        }
+        if (clazz.isInterface()) {
+            // declared collection interfaces are streamed as their usual implementations
+            if (clazz == List.class || clazz == Collection.class) {
+                addDictionaryClass(ArrayList.class);
+            } else if (clazz == Set.class) {
+                addDictionaryClass(HashSet.class);
+            } else if (clazz == Map.class) {
+                addDictionaryClass(HashMap.class);
+            }
+            return;
+        }
+        if (!_dictionaryClasses.add(clazz.getName())) {
+            return;
+        }
+        if (clazz.isArray()) {
+            if (!clazz.getComponentType().isPrimitive()) {
+                addDictionaryClass(clazz.getComponentType());
+            }
+            return;
+        }
+        if (Streamable.class.isAssignableFrom(clazz)) {
+            for (Class<?> sclass = clazz; sclass != null; sclass = sclass.getSuperclass()) {
+                for (Field field : sclass.getDeclaredFields()) {
+                    int mods = field.getModifiers();
+                    if (!Modifier.isStatic(mods) && !Modifier.isTransient(mods)) {
+                        addDictionaryType(field.getGenericType());
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the expression with which a typed codec reads a value of the given type from the
+     * stream "in".
+     */
+    protected static String readExpression (Class<?> type)
+    {
+        if (type.isPrimitive()) {
+            return "in.read" + capitalize(type.getName()) + "()";
+        } else if (type == String.class) {
+            return "Codecs.readString(in)";
+        } else if (type == byte[].class) {
+            return "Codecs.readBytes(in)";
+        } else {
+            return "in.readObject()";
+        }
+    }
+
+    /**
+     * Returns the statement with which a typed codec writes the given value of the given type to
+     * the stream "out".
+     */
+    protected static String writeStatement (Class<?> type, String value)
+    {
+        if (type.isPrimitive()) {
+            String boxed = (type == Integer.TYPE) ? "Integer" :
+                (type == Character.TYPE) ? "Character" : capitalize(type.getName());
+            return "out.write" + capitalize(type.getName()) + "((" + boxed + ")" + value + ");";
+        } else if (type == String.class) {
+            return "Codecs.writeString(out, (String)" + value + ");";
+        } else if (type == byte[].class) {
+            return "Codecs.writeBytes(out, (byte[])" + value + ");";
+        } else {
+            return "out.writeObject(" + value + ");";
+        }
+    }
+
+    protected static String capitalize (String name)
+    {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
     }
 
     protected String getTemplatePath (String template)
@@ -372,4 +668,23 @@ public class GenRiposteTask extends InvocationTask
 
     protected File _clientroot;
     protected String _clientlanguage = "as";
+    protected boolean _typedcodecs;
+    protected File _dictionary;
+
+    /** The names of the classes to write to the dictionary, starting with those every call uses. */
+    protected Set<String> _dictionaryClasses = Sets.newTreeSet(Arrays.asList(
+        Object[].class.getName(), StreamableError.class.getName()));
+
+    /** The wrapper class of each primitive type. */
+    protected static final Map<Class<?>, Class<?>> BOXES = Maps.newHashMap();
+    static {
+        BOXES.put(Boolean.TYPE, Boolean.class);
+        BOXES.put(Byte.TYPE, Byte.class);
+        BOXES.put(Character.TYPE, Character.class);
+        BOXES.put(Short.TYPE, Short.class);
+        BOXES.put(Integer.TYPE, Integer.class);
+        BOXES.put(Long.TYPE, Long.class);
+        BOXES.put(Float.TYPE, Float.class);
+        BOXES.put(Double.TYPE, Double.class);
+    }
 }
@@ -0,0 +1,375 @@
+//
+// $Id$
+//
+// Riposte library - an RPC library for binary data over HTTP POST
+// Copyright (C) 2009-2011 Nathan Curtis
+//
+// This library is free software; you can redistribute it and/or modify it
+// under the terms of the GNU Lesser General Public License as published
+// by the Free Software Foundation; either version 2.1 of the License, or
+// (at your option) any later version.
+//
+// This library is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+// Lesser General Public License for more details.
+//
+// You should have received a copy of the GNU Lesser General Public
+// License along with this library; if not, write to the Free Software
+// Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA 02111-1307 USA
+
+
+package com.threerings.riposte.tools;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletInputStream;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import com.threerings.riposte.data.LatencyHistogram;
+import com.threerings.riposte.data.PostProtocol;
+import com.threerings.riposte.server.PostManager;
+import com.threerings.riposte.server.TrafficCapture;
+
+/**
+ * Replays requests recorded by a {@link TrafficCapture} against a server, either over HTTP or
+ * directly to a {@link PostManager} in the same process, and reports how the handling times and
+ * response sizes compare to those originally recorded. Handling times are those measured by the
+ * server in both cases, which reports them in its response when asked with the
+ * {@link PostProtocol#TIMING_HEADER}; the round trips of the replayed requests, which add the
+ * network and any queueing, are reported separately. Requests are sent at their original pace,
+ * optionally sped up or slowed down, or as fast as possible.
+ *
+ * <p>From the command line: <pre>
+ * java com.threerings.riposte.tools.ReplayTraffic [-rate N] [-threads N] capture-dir url
+ * </pre> where a rate of 2 replays twice as fast as the traffic was recorded, and a rate of 0
+ * replays as fast as the threads allow.
+ */
+public class ReplayTraffic
+{
+    /** Somewhere to send replayed requests. */
+    public interface Target
+    {
+        /**
+         * Sends a request body, asking for the server's handling time, and returns its reply.
+         */
+        Reply send (byte[] request)
+            throws IOException;
+    }
+
+    /** What a target tells us about the response to a replayed request. */
+    public static class Reply
+    {
+        /** The number of bytes in the uncompressed response. */
+        public final int size;
+
+        /** How long the server took to handle the request, or -1 if it didn't say. */
+        public final long nanos;
+
+        public Reply (int size, long nanos)
+        {
+            this.size = size;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * Sends requests to a server over HTTP.
+     */
+    public static class HttpTarget
+        implements Target
+    {
+        public HttpTarget (URL url)
+        {
+            _url = url;
+        }
+
+        // from interface Target
+        public Reply send (byte[] request)
+            throws IOException
+        {
+            HttpURLConnection conn = (HttpURLConnection)_url.openConnection();
+            conn.setDoOutput(true);
+            conn.setUseCaches(false);
+            conn.setFixedLengthStreamingMode(request.length);
+            conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            conn.setRequestProperty(PostProtocol.TIMING_HEADER, "true");
+            OutputStream out = conn.getOutputStream();
+            out.write(request);
+            out.close();
+
+            InputStream in = conn.getInputStream();
+            int size = 0;
+            byte[] buf = new byte[4096];
+            for (int read; (read = in.read(buf)) != -1; ) {
+                size += read;
+            }
+            in.close();
+            String nanos = conn.getHeaderField(PostProtocol.HANDLING_TIME_HEADER);
+            return new Reply(size, parseNanos(nanos));
+        }
+
+        protected URL _url;
+    }
+
+    /**
+     * Hands requests directly to a {@link PostManager}, through stand-in servlet objects, with no
+     * network or servlet container involved.
+     */
+    public static class ManagerTarget
+        implements Target
+    {
+        public ManagerTarget (PostManager manager)
+        {
+            _manager = manager;
+        }
+
+        // from interface Target
+        public Reply send (byte[] request)
+            throws IOException
+        {
+            final InputStream body = new ByteArrayInputStream(request);
+            final ServletInputStream in = new ServletInputStream() {
+                @Override public int read () throws IOException {
+                    return body.read();
+                }
+                @Override public int read (byte[] b, int off, int len) throws IOException {
+                    return body.read(b, off, len);
+                }
+            };
+            final int[] size = new int[1];
+            final ServletOutputStream out = new ServletOutputStream() {
+                @Override public void write (int b) {
+                    size[0]++;
+                }
+                @Override public void write (byte[] b, int off, int len) {
+                    size[0] += len;
+                }
+            };
+
+            final HttpServletRequest stubReq = stub(HttpServletRequest.class, "getInputStream", in,
+                "getContentLength", request.length, "getMethod", "POST");
+            HttpServletRequest req = HttpServletRequest.class.cast(Proxy.newProxyInstance(
+                HttpServletRequest.class.getClassLoader(),
+                new Class<?>[] { HttpServletRequest.class }, new InvocationHandler() {
+                    public Object invoke (Object proxy, Method method, Object[] args)
+                        throws Throwable {
+                        // ask for the handling time, and send no other headers
+                        if (method.getName().equals("getHeader")) {
+                            return PostProtocol.TIMING_HEADER.equals(args[0]) ? "true" : null;
+                        }
+                        return method.invoke(stubReq, args);
+                    }
+                }));
+            final String[] nanos = new String[1];
+            HttpServletResponse rsp = HttpServletResponse.class.cast(Proxy.newProxyInstance(
+                HttpServletResponse.class.getClassLoader(),
+                new Class<?>[] { HttpServletResponse.class }, new InvocationHandler() {
+                    public Object invoke (Object proxy, Method method, Object[] args) {
+                        if (method.getName().equals("getOutputStream")) {
+                            return out;
+                        } else if (method.getName().equals("setHeader") &&
+                                PostProtocol.HANDLING_TIME_HEADER.equals(args[0])) {
+                            nanos[0] = (String)args[1];
+                        }
+                        return null;
+                    }
+                }));
+            _manager.doServiceCall(req, rsp);
+            return new Reply(size[0], parseNanos(nanos[0]));
+        }
+
+        protected PostManager _manager;
+    }
+
+    public static void main (String[] args)
+        throws Exception
+    {
+        double rate = 1;
+        int threads = 8;
+        int idx = 0;
+        for (; idx < args.length && args[idx].startsWith("-"); idx += 2) {
+            if (idx + 1 >= args.length) {
+                usage();
+            } else if (args[idx].equals("-rate")) {
+                rate = Double.parseDouble(args[idx + 1]);
+            } else if (args[idx].equals("-threads")) {
+                threads = Integer.parseInt(args[idx + 1]);
+            } else {
+                usage();
+            }
+        }
+        if (args.length - idx != 2) {
+            usage();
+        }
+
+        ReplayTraffic replay = new ReplayTraffic(new HttpTarget(new URL(args[idx + 1])));
+        replay.replay(new File(args[idx]), rate, threads);
+        replay.printReport();
+    }
+
+    public ReplayTraffic (Target target)
+    {
+        _target = target;
+    }
+
+    /**
+     * Replays every request in a capture, returning once they have all been answered.
+     *
+     * @param rate The factor by which to speed up the original pace, or 0 to send requests as
+     * fast as possible.
+     * @param threads The number of requests that may be outstanding at once. The capture is read
+     * no further ahead than that, so a slow target holds up reading rather than filling memory.
+     */
+    public void replay (File captureDir, double rate, int threads)
+        throws IOException, InterruptedException
+    {
+        ExecutorService exec = Executors.newFixedThreadPool(Math.max(1, threads));
+        final Semaphore outstanding = new Semaphore(Math.max(1, threads));
+        try {
+            TrafficCapture.Reader reader = new TrafficCapture.Reader(captureDir);
+            long firstStamp = 0, startNanos = System.nanoTime();
+            for (TrafficCapture.Record record; (record = reader.next()) != null; ) {
+                if (firstStamp == 0) {
+                    firstStamp = record.timestamp;
+                }
+                if (rate > 0) {
+                    long due = startNanos +
+                        (long)(TimeUnit.MILLISECONDS.toNanos(record.timestamp - firstStamp) / rate);
+                    long wait = due - System.nanoTime();
+                    if (wait > 0) {
+                        TimeUnit.NANOSECONDS.sleep(wait);
+                    }
+                }
+                final TrafficCapture.Record sent = record;
+                outstanding.acquire();
+                exec.execute(new Runnable() {
+                    public void run () {
+                        try {
+                            replay(sent);
+                        } finally {
+                            outstanding.release();
+                        }
+                    }
+                });
+            }
+        } finally {
+            exec.shutdown();
+            exec.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Prints a comparison of the original and replayed handling times and response sizes.
+     */
+    public void printReport ()
+    {
+        System.out.println("requests: " + _roundTrips.getCount() + ", failed: " + _failed.get() +
+            ", response size differs: " + _sizeChanged.get());
+        System.out.println("\tmean_us\tp50_us\tp90_us\tp99_us\tmax_us");
+        printLatencies("original", _original);
+        printLatencies("replayed", _replayed);
+        printLatencies("round_trip", _roundTrips);
+        if (_unreported.get() > 0) {
+            System.out.println("server did not report its handling time for " +
+                _unreported.get() + " requests");
+        }
+    }
+
+    protected void replay (TrafficCapture.Record record)
+    {
+        long start = System.nanoTime();
+        try {
+            Reply reply = _target.send(record.request);
+            _roundTrips.record(System.nanoTime() - start);
+            _original.record(record.nanos);
+            if (reply.nanos >= 0) {
+                _replayed.record(reply.nanos);
+            } else {
+                _unreported.incrementAndGet();
+            }
+            if (reply.size != record.responseBytes) {
+                _sizeChanged.incrementAndGet();
+            }
+        } catch (IOException ioe) {
+            _failed.incrementAndGet();
+        }
+    }
+
+    /**
+     * Parses a reported handling time, returning -1 if there is none.
+     */
+    protected static long parseNanos (String value)
+    {
+        try {
+            return (value == null) ? -1 : Long.parseLong(value);
+        } catch (NumberFormatException nfe) {
+            return -1;
+        }
+    }
+
+    protected static void printLatencies (String label, LatencyHistogram latencies)
+    {
+        System.out.println(label + "\t" + latencies.getMean() / 1000 + "\t" +
+            latencies.getPercentile(0.5) / 1000 + "\t" + latencies.getPercentile(0.9) / 1000 +
+            "\t" + latencies.getPercentile(0.99) / 1000 + "\t" + latencies.getMax() / 1000);
+    }
+
+    /**
+     * Creates an implementation of the given interface that returns the given values from the
+     * named methods, and nothing, zero or false from all others.
+     */
+    protected static <T> T stub (Class<T> iface, Object... returns)
+    {
+        final Object[] values = returns;
+        return iface.cast(Proxy.newProxyInstance(iface.getClassLoader(), new Class<?>[] { iface },
+            new InvocationHandler() {
+                public Object invoke (Object proxy, Method method, Object[] args) {
+                    for (int ii = 0; ii < values.length; ii += 2) {
+                        if (values[ii].equals(method.getName())) {
+                            return values[ii + 1];
+                        }
+                    }
+                    Class<?> rtype = method.getReturnType();
+                    if (rtype == Boolean.TYPE) {
+                        return false;
+                    } else if (rtype == Integer.TYPE) {
+                        return 0;
+                    } else if (rtype == Long.TYPE) {
+                        return 0L;
+                    }
+                    return null;
+                }
+            }));
+    }
+
+    protected static void usage ()
+    {
+        System.err.println("Usage: ReplayTraffic [-rate N] [-threads N] capture-dir url");
+        System.exit(255);
+    }
+
+    protected Target _target;
+    protected LatencyHistogram _original = new LatencyHistogram();
+    protected LatencyHistogram _replayed = new LatencyHistogram();
+    protected LatencyHistogram _roundTrips = new LatencyHistogram();
+    protected AtomicLong _unreported = new AtomicLong();
+    protected AtomicLong _failed = new AtomicLong();
+    protected AtomicLong _sizeChanged = new AtomicLong();
+}